@@ -1,5 +1,11 @@
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.List;
 
 public class Application {
 	
@@ -7,22 +13,52 @@ public class Application {
 	private static String defaultRegistryPort 		= "55921";
 	private static String defaultTeamName 			= "JPlosz";
 	private static String defaultRegistryLocation 	= "local";
+	private static String defaultReceiveShards		= "1";
+	private static String defaultOffHeap			= "false";
+	private static String defaultKeepSnippets		= "1000000";
+	private static String defaultKeepBytes			= String.valueOf(256 * 1024 * 1024);
+	private static String defaultKeepAge			= "0"; // seconds, 0 keeps snippets in memory regardless of age
+	private static String defaultKeepSources		= "10000";
+	private static String defaultKeepSourceAge		= "0"; // seconds
+	private static String defaultPeerRate			= "2000"; // datagrams per second
+	private static String defaultGlobalRate			= "50000"; // datagrams per second
+	private static String defaultBulkRate			= String.valueOf(2 * 1024 * 1024); // bytes per second
+	private static String defaultNodes				= "1";
 	
-	private static CommManager cm;
+	private static final int INPUT_BUFFER_SIZE = 64 * 1024; // bytes of snippet input read at once
+	private static final int MAX_BATCH = 1024; // snippets published together
+	
+	private static NodeHost host;
+	private static CommManager cm; // node publishing the snippets read from input
+	private static List<CommManager> nodes = new ArrayList<CommManager>();
 
 	/**
-	 * Creates a new communication manager and provides it a registry ip and
+	 * Starts a new node on the host and provides it a registry ip and
 	 * port to connect to via tcp/ip connection.
 	 * @param ip - ip of registry
 	 * @param port - port of registry
+	 * @param receiveShards - number of sockets receiving peer messages
+	 * @param visibleIp - address reported to the registry, null to discover it
+	 * @param offHeap - true to keep snippet content outside the Java heap
+	 * @param retention - limits on the snippets and sources kept in memory
+	 * @param peerRate - datagrams per second accepted from a single peer
+	 * @param globalRate - datagrams per second accepted from all peers
+	 * @param bulkRate - bytes per second catch-up traffic may send, 0 for no cap
+	 * @param multicast - group to send gossip and new snippets to, null for unicast only
 	 */
-	private static void connectToRegistry(String ip, String port, String teamName, String registryLocation) {
-		cm = new CommManager(ip, port, teamName, registryLocation);
+	private static void connectToRegistry(String ip, String port, String teamName, String registryLocation, int receiveShards, String visibleIp, boolean offHeap, Retention retention, int peerRate, int globalRate, long bulkRate, MulticastGroup multicast) {
+		CommManager node = host.startNode(ip, port, teamName, registryLocation, receiveShards, visibleIp, offHeap, retention, peerRate, globalRate, bulkRate, multicast);
+		if (cm == null) {
+			cm = node;
+		}
+		nodes.add(node);
 	}
 	
 	/**
 	 * System entry point.  Connects to registry then sits in idle loop
-	 * to wait for snippet from user via command line.
+	 * to wait for snippets from user via command line, or from the file
+	 * named by -in.  With -nodes n, n nodes named after the team share
+	 * the process's threads; input is published by the first of them.
 	 * @param args
 	 */
 	public static void main(String[] args) {
@@ -34,28 +70,79 @@ public class Application {
 		String rPort = 	params.getOrDefault("-port", defaultRegistryPort);
 		String tName = 	params.getOrDefault("-tn",  defaultTeamName);
 		String regLoc=	params.getOrDefault("-l", defaultRegistryLocation);
+		int shards = 	Integer.parseInt(params.getOrDefault("-rs", defaultReceiveShards));
+		String vIp =	params.get("-vip");
+		boolean offHeap = Boolean.parseBoolean(params.getOrDefault("-offheap", defaultOffHeap));
+		Retention retention = new Retention(
+				Integer.parseInt(params.getOrDefault("-keep", defaultKeepSnippets)),
+				Long.parseLong(params.getOrDefault("-keepbytes", defaultKeepBytes)),
+				Long.parseLong(params.getOrDefault("-keepage", defaultKeepAge)) * 1000,
+				Integer.parseInt(params.getOrDefault("-keepsources", defaultKeepSources)),
+				Long.parseLong(params.getOrDefault("-keepsourceage", defaultKeepSourceAge)) * 1000);
+		int peerRate = Integer.parseInt(params.getOrDefault("-peerrate", defaultPeerRate));
+		int globalRate = Integer.parseInt(params.getOrDefault("-globalrate", defaultGlobalRate));
+		long bulkRate = Long.parseLong(params.getOrDefault("-bulkrate", defaultBulkRate));
+		int nodeCount = Integer.parseInt(params.getOrDefault("-nodes", defaultNodes));
+		String mcast = params.get("-mcast");
+		MulticastGroup multicast = (mcast == null) ? null : MulticastGroup.parse(mcast, params.get("-mif"));
 		
-		Application.connectToRegistry(rIp, rPort, tName, regLoc);
 		
-		// run loop
-		Scanner sc = new Scanner(System.in);
-		String snippet;
+		// snippets come from standard input unless a file is provided
+		BufferedReader in;
+		String inputFile = params.get("-in");
+		try {
+			in = (inputFile == null)
+					? new BufferedReader(new InputStreamReader(System.in), INPUT_BUFFER_SIZE)
+					: new BufferedReader(new FileReader(inputFile), INPUT_BUFFER_SIZE);
+		} catch (FileNotFoundException e) {
+			System.err.println("Unable to read snippets from " + inputFile);
+			return;
+		}
 		
-		while (true) {
-			snippet = sc.nextLine();
-			
-			if (snippet.equals("")) {
-				continue; // don't send empty msg to CommManager
-			}
-			
-			cm.sendSnippet(snippet);
-
-			if (snippet.equals("stop")) { 
-				cm.reportedToRegistry = true; // skip reporting if shutting down manually
-				cm.shutdown();
-				break;
+		host = new NodeHost(Runtime.getRuntime().availableProcessors(), shards);
+		Application.connectToRegistry(rIp, rPort, tName, regLoc, shards, vIp, offHeap, retention, peerRate, globalRate, bulkRate, multicast);
+		for (int i = 1; i < nodeCount; i++) {
+			Application.connectToRegistry(rIp, rPort, tName + "-" + i, regLoc, shards, vIp, offHeap, retention, peerRate, globalRate, bulkRate, multicast);
+		}
+		
+		// run loop, lines that are already buffered are published together
+		List<String> batch = new ArrayList<String>();
+		try {
+			while (true) {
+				String snippet = in.readLine(); // wait for the first line of a batch
+				if (snippet == null) {
+					break; // end of input, keep serving peers and the registry
+				}
+				
+				boolean stop = false;
+				while (snippet != null) {
+					if (!snippet.equals("")) {
+						batch.add(snippet); // don't send empty msg to CommManager
+					}
+					if (snippet.equals("stop")) {
+						stop = true;
+						break;
+					}
+					if (batch.size() >= MAX_BATCH || !in.ready()) {
+						break;
+					}
+					snippet = in.readLine();
+				}
+				
+				cm.publish(batch);
+				batch.clear();
+				
+				if (stop) { 
+					for (CommManager node : nodes) {
+						node.reportedToRegistry = true; // skip reporting if shutting down manually
+						node.shutdown();
+					}
+					break;
+				}
 			}
+			in.close();
+		} catch (IOException e) {
+			MyUtil.log("Unable to read snippets: " + e.getMessage(), 2);
 		}
-		sc.close();
 	}
 }
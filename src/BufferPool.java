@@ -0,0 +1,59 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized byte buffers that are recycled between uses
+ * rather than being allocated for every message.  Buffers are handed out
+ * with acquire() and must be handed back with release() once the caller
+ * no longer references them.
+ * @author joshuaplosz
+ *
+ */
+public class BufferPool {
+	
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooled = new AtomicInteger(0);
+	
+	/**
+	 * @param bufferSize - size in bytes of every buffer in the pool
+	 * @param maxPooled - maximum number of idle buffers kept for reuse
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+	
+	/**
+	 * @return an idle buffer from the pool, or a new buffer if none are idle
+	 */
+	public byte[] acquire() {
+		byte[] buff = free.poll();
+		if (buff == null) {
+			return new byte[bufferSize];
+		}
+		pooled.decrementAndGet();
+		return buff;
+	}
+	
+	/**
+	 * Returns a buffer to the pool.  Buffers of the wrong size, or buffers
+	 * beyond the pool's capacity, are left for the garbage collector.
+	 * @param buff - buffer previously returned by acquire
+	 */
+	public void release(byte[] buff) {
+		if (buff == null || buff.length != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			free.offer(buff);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
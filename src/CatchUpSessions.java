@@ -0,0 +1,244 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends past snippets to peers that are new or have become active again.
+ * Each peer has at most one catch-up session, which moves through the
+ * snippet store a slice at a time so a single peer cannot flood the link.
+ * A session sends the snippets stored before it was triggered; the peer
+ * hears of later snippets from their origins.  A peer's watermark is the
+ * store row its catch-up has reached.  Later sessions resume from it
+ * instead of replaying the whole history.  A session that finds its peer
+ * inactive is paused at its watermark.  A trigger that arrives while a
+ * session is sending is merged into it by extending its target to the
+ * snippets stored by then.  A step reserves its slice under the session's
+ * lock and sends it outside, so a trigger for the peer never waits for a send.
+ *
+ * 		IDLE --trigger--> SENDING --target row sent--> IDLE
+ * 		SENDING --peer inactive--> PAUSED --trigger--> SENDING
+ *
+ * @author joshuaplosz
+ *
+ */
+public class CatchUpSessions {
+
+	/**
+	 * Reads the snippet store and sends snippets for the sessions.
+	 */
+	public interface Link {
+		/**
+		 * @param peer - id of a peer
+		 * @return true if the peer is still active
+		 */
+		boolean isActive(int peer);
+		
+		/**
+		 * @param row - first row to read
+		 * @return cursor over the snippet store positioned at the row
+		 */
+		SnippetStore.Cursor cursor(int row);
+		
+		/**
+		 * @return number of rows in the snippet store
+		 */
+		int rows();
+		
+		/**
+		 * @return true if a slice may be sent now, false while earlier
+		 * 		catch-up traffic is still queued
+		 */
+		boolean hasRoom();
+		
+		/**
+		 * Sends up to max snippets read from the cursor to a peer.
+		 * @return number of snippets sent, less than max once the newest snippet was sent
+		 */
+		int send(int peer, SnippetStore.Cursor cursor, int max);
+	}
+	
+	private enum State { IDLE, SENDING, PAUSED }
+	
+	private static final int SLICE = 256; // snippets sent per step of a session
+	private static final long SLICE_INTERVAL = 50; // milliseconds between steps, about 5000 snippets/s per peer
+	private static final long RETRY = 10; // milliseconds to wait when the workers are full
+	
+	/**
+	 * Catch-up progress of a single peer, guarded by itself.  While a step
+	 * is sending, the cursor and event belong to the step.
+	 */
+	private static class Session {
+		final int peer;
+		State state = State.IDLE;
+		boolean stepping = false; // a step is sending a slice outside the lock
+		int watermark = 0; // rows below it have been sent to the peer
+		int from; // watermark when the session started
+		int target; // rows below it are sent by the session
+		SnippetStore.Cursor cursor;
+		NodeEvents.CatchUp event;
+		
+		Session(int peer) {
+			this.peer = peer;
+		}
+	}
+	
+	private final Link link;
+	private final ScheduledExecutorService scheduler;
+	private final StripedExecutor workers;
+	private final int salt; // keeps different nodes' sessions for a peer on different stripes
+	private final ConcurrentHashMap<Integer, Session> sessions = new ConcurrentHashMap<Integer, Session>();
+	
+	private final AtomicLong started;
+	private final AtomicLong merged;
+	private final AtomicLong resumed;
+	private final AtomicLong sent;
+	private final AtomicLong waited;
+	
+	/**
+	 * @param link - reads and sends snippets
+	 * @param scheduler - spaces out the steps of each session
+	 * @param workers - run the steps, keyed by peer
+	 * @param salt - added to the peer id when choosing a worker
+	 * @param metrics - metrics the session counters are added to
+	 */
+	CatchUpSessions(Link link, ScheduledExecutorService scheduler, StripedExecutor workers, int salt, Metrics metrics) {
+		this.link = link;
+		this.scheduler = scheduler;
+		this.workers = workers;
+		this.salt = salt;
+		started = metrics.counter("catchup.started");
+		merged = metrics.counter("catchup.merged");
+		resumed = metrics.counter("catchup.resumed");
+		sent = metrics.counter("catchup.snippets");
+		waited = metrics.counter("catchup.waited");
+		metrics.gauge("catchup.active", this::active);
+	}
+	
+	/**
+	 * Starts sending a peer the snippets past its watermark, unless a
+	 * session for the peer is already sending.
+	 * @param peer - id of peer to catch up
+	 */
+	public void trigger(int peer) {
+		Session s = sessions.computeIfAbsent(peer, Session::new);
+		synchronized (s) {
+			int rows = link.rows();
+			if (s.state == State.SENDING || s.stepping) {
+				// a step still sending after its session was paused carries on
+				merged.incrementAndGet();
+				s.state = State.SENDING;
+				s.target = Math.max(s.target, rows);
+				return;
+			}
+			if (s.watermark >= rows) {
+				return; // every snippet has been sent already
+			}
+			if (s.watermark > 0) {
+				resumed.incrementAndGet();
+			}
+			started.incrementAndGet();
+			s.state = State.SENDING;
+			s.from = s.watermark;
+			s.target = rows;
+			s.cursor = link.cursor(s.watermark);
+			s.event = new NodeEvents.CatchUp();
+			s.event.begin();
+		}
+		submit(s);
+	}
+	
+	private void submit(Session s) {
+		if (!workers.execute(s.peer + salt, () -> step(s))) {
+			scheduler.schedule(() -> submit(s), RETRY, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Sends the next slice of a session, then schedules the next step or
+	 * ends the session.  While the outbound queue is full of earlier catch-up
+	 * traffic the step sends nothing and tries again later, rather than
+	 * blocking the worker.  Runs on a worker.
+	 */
+	private void step(Session s) {
+		SnippetStore.Cursor cursor;
+		int max;
+		synchronized (s) {
+			if (s.state != State.SENDING) {
+				return;
+			}
+			if (!link.isActive(s.peer)) {
+				s.state = State.PAUSED;
+				finish(s);
+				return;
+			}
+			if (!link.hasRoom()) {
+				waited.incrementAndGet();
+				scheduler.schedule(() -> submit(s), SLICE_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			}
+			cursor = s.cursor;
+			max = Math.min(SLICE, s.target - s.watermark);
+			s.stepping = true;
+		}
+		
+		int n = link.send(s.peer, cursor, max);
+		
+		synchronized (s) {
+			s.stepping = false;
+			s.watermark = cursor.position();
+			sent.addAndGet(n);
+			if (s.state != State.SENDING) {
+				finish(s); // paused by shutdown while sending
+				return;
+			}
+			if (n == 0 || s.watermark >= s.target) {
+				s.state = State.IDLE;
+				finish(s);
+				return;
+			}
+		}
+		scheduler.schedule(() -> submit(s), SLICE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	private void finish(Session s) {
+		s.cursor.close();
+		s.cursor = null;
+		s.event.end();
+		if (s.event.shouldCommit()) {
+			s.event.peer = s.peer;
+			s.event.snippets = s.watermark - s.from;
+			s.event.commit();
+		}
+		s.event = null;
+	}
+	
+	/**
+	 * @return number of sessions sending snippets
+	 */
+	public int active() {
+		int n = 0;
+		for (Session s : sessions.values()) {
+			synchronized (s) {
+				if (s.state == State.SENDING) n++;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Stops every session.  Watermarks are kept.
+	 */
+	public void shutdown() {
+		for (Session s : sessions.values()) {
+			synchronized (s) {
+				if (s.state == State.SENDING) {
+					s.state = State.PAUSED;
+					if (!s.stepping) {
+						finish(s); // otherwise the step finishes once its send returns
+					}
+				}
+			}
+		}
+	}
+}
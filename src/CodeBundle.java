@@ -0,0 +1,117 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Holds the "get code" response for a source directory as a single
+ * encoded block of bytes.  The directory is watched, so a request only
+ * checks for pending change events instead of listing the files.  The block
+ * is rebuilt only when a file was created, deleted or modified since it was
+ * last built.  Where the directory cannot be watched, its own modification
+ * time is compared instead, which misses edits made in place.
+ * @author joshuaplosz
+ *
+ */
+public class CodeBundle {
+	
+	private final File dir;
+	private final String language;
+	
+	private byte[] blob;
+	private WatchKey watch; // null until the first build, or if the directory cannot be watched
+	private long dirModified = -1;
+	
+	/**
+	 * @param dir - directory holding the source files
+	 * @param language - language name sent before the source
+	 */
+	CodeBundle(File dir, String language) {
+		this.dir = dir;
+		this.language = language;
+	}
+	
+	/**
+	 * Returns the language line, every line of every source file and
+	 * the "..." terminator, encoded as they are sent to the registry.
+	 * @return cached response, rebuilt first if the source has changed
+	 */
+	public synchronized byte[] get() {
+		if (blob == null) {
+			watch = watch();
+		} else if (!changed()) {
+			return blob;
+		}
+		
+		// events arriving from here on are seen by the next request
+		dirModified = dir.lastModified();
+		File[] files = dir.listFiles();
+		if (files == null) {
+			files = new File[0];
+		}
+		blob = build(files);
+		MyUtil.log("Rebuilt code bundle of " + blob.length + " bytes from " + files.length + " files", 2);
+		return blob;
+	}
+	
+	/**
+	 * @return true if the directory may have changed since the last build
+	 */
+	private boolean changed() {
+		if (watch == null) {
+			return dir.lastModified() != dirModified;
+		}
+		boolean changed = !watch.pollEvents().isEmpty();
+		if (!watch.reset()) {
+			watch = null; // directory is gone, compare its modification time from now on
+			return true;
+		}
+		return changed;
+	}
+	
+	/**
+	 * @return key signalled when a file in the directory changes, or null
+	 * 		if the directory cannot be watched
+	 */
+	private WatchKey watch() {
+		WatchService watcher = null;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			return dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException | UnsupportedOperationException e) {
+			if (watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException ignored) {
+					// nothing was registered with it
+				}
+			}
+			MyUtil.log("Unable to watch " + dir + ", checking its modification time instead: " + e.getMessage(), 2);
+			return null;
+		}
+	}
+	
+	private byte[] build(File[] files) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(language).append("\n");
+		for (File file : files) {
+			try (BufferedReader fileReader = new BufferedReader(new FileReader(file))) {
+				String line;
+				while((line = fileReader.readLine()) != null) {
+					sb.append(line).append("\n");
+				}
+			} catch (IOException e) {
+				MyUtil.log("Unable to read from file when sending code.", 2);
+				e.printStackTrace();
+			}
+		}
+		sb.append("...").append("\n");
+		return sb.toString().getBytes(Charset.defaultCharset());
+	}
+}
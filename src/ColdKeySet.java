@@ -0,0 +1,154 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A set of (origin, timestamp) keys kept in a file instead of on the heap.
+ * The file is an open addressing hash table of longs, mapped into memory
+ * so the operating system pages it in and out, and copied to a file twice
+ * the size when it is half full.  Holds the timeline entries of snippets
+ * evicted to disk, so a snippet that arrives again is recognised as a
+ * duplicate however long ago it was evicted, while the heap does not grow
+ * with the number of snippets.  Keys are only ever added, by one thread at
+ * a time; any thread may look one up.
+ * @author joshuaplosz
+ *
+ */
+public class ColdKeySet {
+	
+	private static final int SLOT = 8; // bytes per key
+	private static final int INITIAL_SLOTS = 1 << 16;
+	private static final int MAX_SLOTS = 1 << 27; // largest power of 2 a single mapping holds
+	
+	// held for writing only while the table is replaced by a larger one
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private File file;
+	private MappedByteBuffer table; // null until the first key is added
+	private int slots;
+	private int count = 0;
+	private boolean failed = false;
+	
+	/**
+	 * Adds a key to the set.
+	 * @param origin - id of the snippet's origin
+	 * @param timestamp - snippet's timestamp
+	 * @return false if the key could not be stored, the caller keeps it in memory instead
+	 */
+	public synchronized boolean add(int origin, int timestamp) {
+		if (failed) {
+			return false;
+		}
+		try {
+			if (table == null) {
+				replace(INITIAL_SLOTS);
+			} else if ((count + 1) * 2L > slots) {
+				if (slots == MAX_SLOTS) {
+					throw new IOException("table is full");
+				}
+				replace(slots * 2);
+			}
+			if (insert(table, slots, key(origin, timestamp))) {
+				count++;
+			}
+			return true;
+		} catch (IOException e) {
+			MyUtil.log("Unable to write evicted timeline entries to disk, they stay in memory: " + e.getMessage(), 2);
+			failed = true;
+			return false;
+		}
+	}
+	
+	/**
+	 * @param origin - id of the snippet's origin
+	 * @param timestamp - snippet's timestamp
+	 * @return true if the key was added to the set
+	 */
+	public boolean contains(int origin, int timestamp) {
+		long key = key(origin, timestamp);
+		lock.readLock().lock();
+		try {
+			if (table == null) {
+				return false;
+			}
+			int mask = slots - 1;
+			for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+				long stored = table.getLong(i * SLOT);
+				if (stored == 0) {
+					return false;
+				}
+				if (stored == ~key) {
+					return true;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Copies every key to a new file with n slots and swaps it in.
+	 */
+	private void replace(int n) throws IOException {
+		File created = File.createTempFile("timelines-", ".keys");
+		created.deleteOnExit();
+		MappedByteBuffer next;
+		try (RandomAccessFile f = new RandomAccessFile(created, "rw")) {
+			next = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) n * SLOT);
+		} catch (IOException e) {
+			created.delete();
+			throw e;
+		}
+		for (int i = 0; table != null && i < slots; i++) {
+			long stored = table.getLong(i * SLOT);
+			if (stored != 0) {
+				insert(next, n, ~stored);
+			}
+		}
+	
+		File old = file;
+		lock.writeLock().lock();
+		try {
+			table = next;
+			slots = n;
+			file = created;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (old != null) {
+			old.delete(); // its pages are released once the old mapping is collected
+		}
+	}
+	
+	/**
+	 * @return false if the key was already in the table
+	 */
+	private static boolean insert(MappedByteBuffer table, int n, long key) {
+		int mask = n - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			long stored = table.getLong(i * SLOT);
+			if (stored == ~key) {
+				return false;
+			}
+			if (stored == 0) {
+				table.putLong(i * SLOT, ~key);
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Keys are stored inverted, so an empty slot, which reads as 0, is never
+	 * mistaken for one: origins are never negative.
+	 */
+	private static long key(int origin, int timestamp) {
+		return ((long) origin << 32) | (timestamp & 0xffffffffL);
+	}
+	
+	private static int hash(long key) {
+		long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+		return (int) (h ^ (h >>> 33));
+	}
+}
@@ -1,16 +1,24 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Communication manager is responsible for:
@@ -24,89 +32,292 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class CommManager {
 	
 	private String teamName = "";
-	private String language = "java";
-	private long t = 2000; // 2 second broadcast interval
+	private static final String LANGUAGE = "java";
+	// one bundle, and one directory watch, for every node in the process
+	private static final CodeBundle code = new CodeBundle(new File(new File("").getAbsolutePath() + "/src"), LANGUAGE);
+	private volatile long t = MIN_GOSSIP_INTERVAL; // broadcast interval in milliseconds, adapted to membership churn
 	
 	private String registryIP;
 	private String registryPort;
 	private String udpPort;
-	private String visibleIp;
-	private TCPConnection tcp;
+	private CompletableFuture<String> visibleIp;
+	// registry connection being established, tcp is set once it completes
+	private CompletableFuture<TCPConnection> registry;
+	private volatile TCPConnection tcp;
 	private UDPServer udp;
 	
 	private GroupManager gm;	
+	private Metrics metrics = new Metrics();
 	private AtomicInteger timestamp = new AtomicInteger(0);
+	// threads shared with the other nodes in this process
+	private NodeHost host;
+	private int nodeId;
 	
-	// timer to schedule re-sending of snippets
-	Timer timer;
-	// mapping of peer's address and timestamp to the number of times we have sent the snippet
-	HashMap<String, Integer> expectingAcks = new HashMap<>();
-	// mapping of peer's address and timestamp to the timer that controls the sending of the snippet
-	HashMap<String, Timer> timers = new HashMap<>();
+	// interned ids of every endpoint seen by this process
+	private PeerTable peers = new PeerTable();
 	
-	LinkedList<String> acksReceived = new LinkedList<>();
+	// progress of each snippet we sent until every peer has acknowledged it
+	private DeliveryTracker deliveries;
+	// past snippets being sent to new or re-activated peers
+	private CatchUpSessions catchUps;
+	private ScheduledFuture<?> retentionTask;
+	private final AtomicBoolean retaining = new AtomicBoolean(false); // a retention check is running
+	
+	ReportLog acksReceived = new ReportLog("acks");
+	
+	// ids of peers we have advertised our capabilities to
+	private Set<Integer> capabilitiesSent = ConcurrentHashMap.newKeySet();
+	// ids of peers that accept compressed payloads
+	private Set<Integer> compressionPeers = ConcurrentHashMap.newKeySet();
+	// ids of peers that reassemble fragmented payloads
+	private Set<Integer> fragmentPeers = ConcurrentHashMap.newKeySet();
+	// acks of the bundle being parsed by the current thread, if any
+	private ThreadLocal<Bundler> bundledAcks = new ThreadLocal<Bundler>();
+	// uncompressed size limit of a single bundle before it is split
+	private static final int MAX_BUNDLE_SIZE = 8 * 1024;
+	// snippets a subscriber may fall behind before its oldest are dropped
+	private static final int DEFAULT_FEED_CAPACITY = 4096;
+	// milliseconds between checks of the retention limits
+	private static final long RETENTION_INTERVAL = 1000;
+	// lines of each report log kept in memory, older lines are moved to disk
+	private static final int REPORT_LINES_KEPT = 4096;
+	// bounds of the broadcast interval in milliseconds, it doubles while membership is stable
+	private static final long MIN_GOSSIP_INTERVAL = 1000;
+	private static final long MAX_GOSSIP_INTERVAL = 32000;
+	// keywords of the messages peers and the registry send over UDP
+	// messages that make an unknown sender known: a peer's gossip and the registry's stop
+	private static final String[] INTRODUCTIONS = { "peer", "stop" };
 
-	CommManager(String registryIP, String registryPort, String teamName, String registryLocation) {
+	/**
+	 * Started through NodeHost.startNode, the node's sockets, timers and
+	 * message handling run on the host's shared threads.  Returns once the
+	 * UDP socket is bound; the registry is connected to in the background.
+	 * @param host - threads shared with other nodes in this process
+	 * @param registryIP - IP address of registry
+	 * @param registryPort - port number of registry
+	 * @param teamName - name reported to the registry
+	 * @param registryLocation - "remote" if the registry is reached over the internet, "local" otherwise
+	 * @param receiveShards - number of sockets receiving on the UDP port
+	 * @param visibleIpOverride - address reported to the registry in place of the discovered one, or null
+	 * @param offHeapSnippets - true to keep snippet content outside the Java heap
+	 * @param retention - limits on the snippets and sources kept in memory
+	 * @param limiter - limits on the datagrams accepted from peers
+	 * @param bulkRate - bytes per second catch-up traffic may send, 0 for no cap
+	 * @param multicast - group to send gossip and new snippets to, null for unicast only
+	 */
+	CommManager(NodeHost host, String registryIP, String registryPort, String teamName, String registryLocation, int receiveShards, String visibleIpOverride, boolean offHeapSnippets, Retention retention, RateLimiter limiter, long bulkRate, MulticastGroup multicast) {
+		this.host = host;
+		this.nodeId = host.nextNodeId();
 		this.registryIP = registryIP;
 		this.registryPort = registryPort;
 		this.teamName = teamName;
+		deliveries = new DeliveryTracker(new DeliveryLink(), host.getScheduler());
 
-		gm = new GroupManager();
+		gm = new GroupManager(peers, offHeapSnippets, retention);
+		metrics.gauge("snippets.stored", gm::getSnippetCount);
+		metrics.gauge("snippets.cold", gm::getColdSnippetCount);
+		metrics.gauge("snippets.bytes", gm::getSnippetBytes);
+		metrics.gauge("delivery.inflight", deliveries::inFlight);
+		metrics.gauge("feed.subscribers", () -> gm.getFeed().getSubscriberCount());
+		metrics.gauge("feed.dropped", () -> gm.getFeed().getDropped());
+		metrics.gauge("jvm.threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+		metrics.gauge("jvm.heap.used", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+		gossipSent = metrics.counter("gossip.sent");
+		metrics.gauge("gossip.interval", () -> t);
+		metrics.gauge("gossip.churn", gm::getChurn);
+		metrics.gauge("gossip.rate", () -> gossipDatagrams() * 60000L / t);
+		gm.setChurnListener(this::churned);
+		catchUps = new CatchUpSessions(new CatchUpLink(), host.getScheduler(), host.getWorkers(), nodeId * 0x9E3779B9, metrics);
 		
-		udp = new UDPServer(this);
+		// keep memory within the retention limits
+		retentionTask = host.getScheduler().scheduleWithFixedDelay(this::enforceRetention,
+				RETENTION_INTERVAL, RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+		
+		udp = new UDPServer(this, host, receiveShards, limiter, bulkRate, multicast);
 		udp.listen();
+		udpPort = udp.getLocalUdpPort();
+		
+		// gossip as soon as the UDP socket is bound, the registry is reached concurrently
+		scheduleGossip(t);
 		
 		// add myself to the list of peers in the system
 		// gm.addSingleSource(visibleIp + ":" + udpPort, visibleIp, udpPort);
 		
-		tcp = new TCPConnection(registryIP, registryPort, this);
-		tcp.listen();
+		Executor startup = r -> new Thread(r, "Startup").start();
+		registry = CompletableFuture.supplyAsync(
+				() -> new TCPConnection(registryIP, registryPort, this), startup);
 		
-		if (registryLocation.equals("remote")) {
-			visibleIp = udp.getVisibleIp();
+		if (visibleIpOverride != null) {
+			visibleIp = CompletableFuture.completedFuture(visibleIpOverride);
+		} else if (registryLocation.equals("remote")) {
+			visibleIp = CompletableFuture.supplyAsync(udp::getVisibleIp, startup);
 		} else {
-			visibleIp = tcp.getLocalIp();
+			visibleIp = registry.thenApply(TCPConnection::getLocalIp);
+		}
+		
+		// serve the registry once connected, without holding up the nodes started after this one
+		registry.whenComplete((connection, e) -> {
+			if (connection == null) {
+				MyUtil.log("Unable to connect to registry: " + e, 2);
+			} else {
+				tcp = connection;
+				connection.listen();
+			}
+			checkStopped();
+		});
+	}
+	
+	/**
+	 * Hands a check of the retention limits to the host's maintenance pool,
+	 * unless the previous check is still running.  The check also moves all
+	 * but the newest report lines to disk.  Eviction writes to disk, so it
+	 * must not run on the scheduler that times every node's gossip and retries.
+	 */
+	private void enforceRetention() {
+		if (!retaining.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			host.getMaintenance().execute(() -> {
+				try {
+					gm.enforceRetention();
+					msgsSent.spill(REPORT_LINES_KEPT);
+					acksReceived.spill(REPORT_LINES_KEPT);
+				} finally {
+					retaining.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			retaining.set(false); // the host is shutting down
+		}
+	}
+	
+	/**
+	 * Parses each message of a bundle received in a single datagram.  Acks
+	 * for the snippets in the bundle are bundled in the same way.
+	 * @param msgs - messages of the bundle
+	 * @param in_peer - id of the message sender
+	 */
+	public void parseBundle(String[] msgs, int in_peer) {
+		Bundler acks = new Bundler(in_peer, OutboundScheduler.Priority.CONTROL, compressionPeers.contains(in_peer));
+		bundledAcks.set(acks);
+		try {
+			for (String msg : msgs) {
+				if (!msg.isEmpty()) parse(msg, in_peer);
+			}
+		} finally {
+			bundledAcks.remove();
+			acks.finish();
 		}
-		udpPort = udp.getLocalUdpPort();
-
-		// start periodic thread that broadcasts to all peers at 't' intervals
-		Thread tm = new Thread(new TimedMulticast(t));
-		tm.start();
 	}
 	
 	/**
 	 * Any incoming message from either the UDP server or TCP connection
 	 * gets parsed, line by line, and handled appropriately.
 	 * @param msg - single line from UDP/TCP message as a string
-	 * @param in_ip - IP address from message sender
-	 * @param in_port - Port number from message sender
+	 * @param in_peer - id of the message sender
+	 */
+	public void parse(String msg, int in_peer) {
+		parse(msg, null, in_peer);
+	}
+	
+	/**
+	 * Parses a registry request together with the block of lines that
+	 * followed it, such as the list of a "receive peers" request.
+	 * @param msg - first line of the request
+	 * @param block - lines that followed, null if the request has none
+	 * @param in_peer - id of the message sender
+	 */
+	public void parse(String msg, String[] block, int in_peer) {
+		NodeEvents.Parse event = new NodeEvents.Parse();
+		event.begin();
+		
+		parseMessage(msg, block, in_peer);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.type = messageType(msg);
+			event.peer = in_peer;
+			event.size = msg.length();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @param msg - peer or registry message
+	 * @return keyword of the message, e.g. "snip" or "get report"
+	 */
+	private static String messageType(String msg) {
+		String[] words = msg.trim().split(" ", 3);
+		if (words[0].equals("get") && words.length > 1) {
+			return "get " + words[1];
+		}
+		// peer and ctch are followed directly by an address
+		if (words[0].startsWith("peer") || words[0].startsWith("ctch")) {
+			return words[0].substring(0, 4);
+		}
+		return words[0];
+	}
+	
+	/**
+	 * A peer that is not yet in any peer list introduces itself by gossiping,
+	 * and the registry's UDP endpoint is in no list at all.  Any other message
+	 * from an unknown endpoint is dropped, so datagrams with made up sources
+	 * cannot intern them.
+	 * @param msg - first message received from an endpoint that is not yet known
+	 * @return true if the message introduces its sender, so it is worth interning
+	 */
+	public boolean isIntroduction(String msg) {
+		if (msg.length() < 4) {
+			return false;
+		}
+		for (String type : INTRODUCTIONS) {
+			if (msg.startsWith(type)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param msg - registry request
+	 * @return true if the request is followed by a count and that many
+	 * 		lines, which are read before it is parsed
 	 */
-	public void parse(String msg, String in_ip, String in_port) {	
+	public static boolean hasBlock(String msg) {
+		return msg.startsWith("receive");
+	}
+	
+	private void parseMessage(String msg, String[] block, int in_peer) {	
 
 		/////////// udp msgs ////////////
 		if (msg.substring(0, 4).equals("peer")) {
-			MyUtil.log("Received PEER msg from " + in_ip + ":" + in_port + "  MSG: " + msg, 1);
-			String peer = msg.substring(4);
-			String[] comp = peer.split(":");
+			MyUtil.log("Received PEER msg from " + peers.key(in_peer) + "  MSG: " + msg, 1);
+			int peer = peers.intern(msg.substring(4));
+			if (peer == PeerTable.UNKNOWN) {
+				return;
+			}
 			
 			// if the source peer is new send it past snippets
-			if (!gm.addSingleSource(peer, in_ip, in_port)) {
+			if (!gm.addSingleSource(peer, in_peer)) {
 				MyUtil.log("New source!  Send catchup messages", 1);
-				catchUpSnippets(comp[0], comp[1]);
+				catchUps.trigger(peer);
 			}
 			
 			// if the source peer was previously inactive send it past snippets 
-			if (!gm.peerActive(in_ip, in_port)) {
+			if (!gm.peerActive(in_peer)) {
 				MyUtil.log("Source re-activated!  Send catchup messages", 1);
-				catchUpSnippets(in_ip, in_port);
+				catchUps.trigger(in_peer);
 			}
 			
 			// update the latest time we have heard from the source
-			gm.updatePeer(in_ip, in_port);
+			gm.updatePeer(in_peer);
+			
+			offerCapabilities(in_peer);
 		
 		} else if (msg.substring(0, 4).equals("snip")) {
 			MyUtil.log("Received SNIP msg", 1);
-			gm.updatePeer(in_ip, in_port);
+			gm.updatePeer(in_peer);
 			
 			// "snip"_<timestamp>_<content>  <--- incoming snippet format
 			String[] line = msg.substring(4).trim().split(" ");
@@ -116,27 +327,47 @@ public class CommManager {
 			for (int i = 1; i < line.length; i++) 
 				content += line[i] + " ";
 			
-			MyUtil.log(line[0] + " " + content + " " + in_ip + ":" + in_port, 2);
+			MyUtil.log(line[0] + " " + content + " " + peers.key(in_peer), 2);
 			int msgTimestamp = Integer.parseInt(line[0]);
 			compareToCurrTimestamp(msgTimestamp);
-			gm.storeSnippet(line[0], content, in_ip, in_port);
+			gm.storeSnippet(msgTimestamp, content, in_peer);
 			
 			String ack = "ack " + msgTimestamp;
-			udp.toPeer(ack, in_ip, in_port);
+			Bundler acks = bundledAcks.get();
+			if (acks != null) {
+				acks.add(ack);
+			} else {
+				udp.toPeer(ack, in_peer, OutboundScheduler.Priority.CONTROL);
+			}
 		
 		} else if (msg.substring(0, 4).equals("stop")) {
 			MyUtil.log("Received STOP msg", 1);
-			registryStop(in_ip, in_port);
+			registryStop(in_peer);
 			
 		} else if (msg.substring(0, 4).equals("ctch")) {
 			MyUtil.log("Received CTCH msg", 1);
 			catchUp(msg.substring(4));
 		
+		} else if (msg.substring(0, 4).equals("capa")) {
+			MyUtil.log("Received CAPA msg", 1);
+			for (String capability : msg.substring(4).trim().split(" ")) {
+				if (capability.equals(PayloadCodec.CAPABILITY)) {
+					compressionPeers.add(in_peer);
+				} else if (capability.equals(Reassembler.CAPABILITY)) {
+					fragmentPeers.add(in_peer);
+				}
+			}
+			offerCapabilities(in_peer);
+		
 		} else if (msg.substring(0, 3).equals("ack")) {
 			MyUtil.log("Received ACK msg", 1);
-			String ackMsg = in_ip + ":" + in_port + " " + msg.substring(3).trim();
-			acksReceived.add(msg.substring(3).trim() + " " + in_ip + ":" + in_port + "\n");
-			processAck(ackMsg);
+			String ackTimestamp = msg.substring(3).trim();
+			acksReceived.add(ackTimestamp + " " + peers.key(in_peer) + "\n");
+			try {
+				processAck(in_peer, Integer.parseInt(ackTimestamp));
+			} catch (NumberFormatException e) {
+				// not an ack for a snippet
+			}
 		
 		/////////////////////////////////
 
@@ -162,6 +393,20 @@ public class CommManager {
 			} else if (line[1].equals("location")){
 				MyUtil.log("Received GET LOCATION msg");
 				getLocation();
+			
+			// get metrics
+			} else if (line[1].equals("metrics")) {
+				MyUtil.log("Received GET METRICS msg");
+				getMetricsReport();
+			
+			// get delivery <timestamp>
+			} else if (line[1].equals("delivery") && line.length > 2) {
+				MyUtil.log("Received GET DELIVERY msg");
+				try {
+					getDeliveryReport(Integer.parseInt(line[2].trim()));
+				} catch (NumberFormatException e) {
+					MyUtil.log("Unusual request", 2);
+				}
 				
 			// unknown get request
 			} else {
@@ -176,13 +421,12 @@ public class CommManager {
 		} else if (msg.substring(0, 7).equals("receive")) {
 			// receive peers
 			MyUtil.log("Received RECEIVE PEERS msg", 1);
-			int numOfPeers = Integer.parseInt(tcp.readLineFromRegistry());
-			Queue<String> more = new LinkedList<String>();
-			more.add(String.valueOf(numOfPeers));
-			for (int i = 0; i < numOfPeers; i++) {
-				more.add(tcp.readLineFromRegistry());						
+			if (block == null) {
+				MyUtil.log("Unusual request", 2);
+				return;
 			}
-			receivePeers(more);
+			MyUtil.log("Read " + block.length + " lines from registry", 2);
+			receivePeers(block);
 		}
 	}
 			
@@ -195,71 +439,195 @@ public class CommManager {
 		MyUtil.log("Catchup msg: " + msg, 2);
 		String[] line = msg.trim().split(" ", 3);
 		// line = <original sender><timestamp><content>
-		String[] msgAddr = line[0].split(":");
+		int origin = peers.intern(line[0]);
 		
 		MyUtil.log("catchup msg content: " + line[2], 2);
 		
-		gm.storeSnippet(line[1], line[2], msgAddr[0], msgAddr[1]);
+		if (origin != PeerTable.UNKNOWN) {
+			gm.storeSnippet(Integer.parseInt(line[1]), line[2], origin);
+		}
 	}
 
 	/**
-	 * TODO
-	 * @param string
-	 * @param string2
+	 * Sends slices of past snippets to a peer as "ctch" messages for the
+	 * catch-up sessions.  Peers that accept compressed payloads receive the
+	 * messages in compressed bundles that each fit in a single datagram.
 	 */
-	private void catchUpSnippets(String ip, String port) {
-		for (String snip : gm.getSnippets()) {
-			String msg = "ctch";
-			String[] comp = snip.trim().split(" ");
-			// comp = <timestamp><content><ip>":"<port>"\n"
-			String content = "";
-			for (int i = 1; i < comp.length - 1; i++) {
-				content += comp[i] + " ";
-			}
-			msg += comp[comp.length-1] + " " + comp[0] + " " + content;
-			udp.toPeer(msg, ip, port);
+	private class CatchUpLink implements CatchUpSessions.Link {
+		
+		@Override
+		public boolean isActive(int peer) {
+			return udp.connectionOpen && gm.isPeerActive(peer);
+		}
+		
+		@Override
+		public SnippetStore.Cursor cursor(int row) {
+			return gm.getSnippetCursor(row);
+		}
+		
+		@Override
+		public int rows() {
+			return gm.getSnippetRows();
+		}
+		
+		@Override
+		public boolean hasRoom() {
+			return udp.hasRoom(OutboundScheduler.Priority.BULK);
+		}
+		
+		@Override
+		public int send(int peer, SnippetStore.Cursor cursor, int max) {
+			// snippets evicted to disk are read back lazily, one at a time
+			CatchUp catchUp = new CatchUp(peer, compressionPeers.contains(peer));
+			int sent = cursor.next(max, catchUp);
+			catchUp.finish();
+			return sent;
 		}
 	}
 	
 	/**
-	 * TODO
-	 * @param substring
+	 * Sends messages to a single peer.  Messages are sent as they are added,
+	 * or gathered into bundles for peers that accept compressed payloads.
+	 * @author joshuaplosz
+	 *
 	 */
-	private void processAck(String msg) {
-		MyUtil.log("Ack msg: " + msg);
+	private class Bundler {
+		int peer;
+		OutboundScheduler.Priority priority;
+		boolean bundle;
+		List<String> batch = new LinkedList<String>();
+		int batchSize = 0;
+		
+		Bundler(int peer, OutboundScheduler.Priority priority, boolean bundle) {
+			this.peer = peer;
+			this.priority = priority;
+			this.bundle = bundle;
+		}
+		
+		public void add(String msg) {
+			if (!bundle) {
+				sendToPeer(msg, peer, priority);
+				return;
+			}
+			if (batchSize + msg.length() > MAX_BUNDLE_SIZE && !batch.isEmpty()) {
+				sendBundle(batch, peer, priority);
+				batch = new LinkedList<String>();
+				batchSize = 0;
+			}
+			batch.add(msg);
+			batchSize += msg.length() + 1;
+		}
 		
-		expectingAcks.remove(msg);
-		if (expectingAcks.get(msg) == null) {
-			Timer t = timers.get(msg);
-			if (t != null) {
-				t.cancel();
-				t.purge();
-				timers.remove(msg);
+		/**
+		 * Sends the last partly filled bundle.
+		 */
+		public void finish() {
+			if (!batch.isEmpty()) {
+				sendBundle(batch, peer, priority);
 			}
 		}
 	}
+	
+	/**
+	 * Turns each visited snippet into a "ctch" message for a single peer.
+	 * @author joshuaplosz
+	 *
+	 */
+	private class CatchUp extends Bundler implements SnippetStore.Visitor {
+		
+		CatchUp(int peer, boolean bundle) {
+			super(peer, OutboundScheduler.Priority.BULK, bundle);
+		}
+		
+		@Override
+		public void visit(int timestamp, int origin, String content) {
+			add("ctch" + peers.key(origin) + " " + timestamp + " " + content);
+		}
+	}
+	
+	/**
+	 * Compresses a batch of messages into one datagram.  A batch that does not
+	 * compress into a single datagram is split in half and each half is retried.
+	 * @param batch - messages to be sent
+	 * @param peer - id of destination peer
+	 * @param priority - class the datagrams are scheduled in
+	 */
+	private void sendBundle(List<String> batch, int peer, OutboundScheduler.Priority priority) {
+		byte[] framed = PayloadCodec.compress(String.join("\n", batch));
+		if (framed != null && framed.length <= UDPServer.MAX_DATAGRAM) {
+			udp.toPeer(framed, peer, priority);
+		} else if (batch.size() == 1) {
+			sendToPeer(batch.get(0), peer, priority);
+		} else {
+			int half = batch.size() / 2;
+			sendBundle(batch.subList(0, half), peer, priority);
+			sendBundle(batch.subList(half, batch.size()), peer, priority);
+		}
+	}
+	
+	/**
+	 * Sends a message to a peer, compressed if the peer accepts compressed
+	 * payloads and compressing makes the message smaller.  Messages that 
+	 * are still larger than a datagram are fragmented for peers that 
+	 * reassemble fragments.
+	 * @param msg - message to be sent
+	 * @param peer - id of destination peer
+	 * @param priority - class the message is scheduled in
+	 */
+	private void sendToPeer(String msg, int peer, OutboundScheduler.Priority priority) {
+		byte[] out = null;
+		if (msg.length() >= PayloadCodec.MIN_COMPRESS_SIZE && compressionPeers.contains(peer)) {
+			out = PayloadCodec.compress(msg);
+		}
+		if (out == null) {
+			out = msg.getBytes();
+		}
+		
+		if (out.length > UDPServer.MAX_DATAGRAM && fragmentPeers.contains(peer)) {
+			udp.toPeerFragmented(out, peer, priority);
+		} else {
+			udp.toPeer(out, peer, priority);
+		}
+	}
+	
+	/**
+	 * Advertises the payload formats this process accepts to a peer,
+	 * once per peer.
+	 * @param peer - id of peer
+	 */
+	private void offerCapabilities(int peer) {
+		if (capabilitiesSent.add(peer)) {
+			udp.toPeer("capa " + PayloadCodec.CAPABILITY + " " + Reassembler.CAPABILITY, peer, OutboundScheduler.Priority.CONTROL);
+		}
+	}
+	
+	/**
+	 * Stops re-sending a snippet to the peer that acknowledged it.
+	 * @param peer - id of the peer that sent the ack
+	 * @param ts - timestamp of the acknowledged snippet
+	 */
+	private void processAck(int peer, int ts) {
+		MyUtil.log("Ack msg: " + peers.key(peer) + " " + ts);
+		deliveries.ack(peer, ts);
+	}
 
 	/**
-	 * Compares the foregin timestamp to the local timestamp.
-	 * Synchronized to make timestamp thread safe between the two operations.
+	 * Compares the foregin timestamp to the local timestamp and keeps the larger.
+	 * Done as a single atomic update so concurrent workers cannot move the timestamp backwards.
 	 * @param msgTimestamp - foreign timestamp
 	 */
-	private synchronized void compareToCurrTimestamp(int msgTimestamp) {
-		synchronized (timestamp) {
-			if (timestamp.get() < msgTimestamp)
-				timestamp.set(msgTimestamp);
-		}
+	private void compareToCurrTimestamp(int msgTimestamp) {
+		timestamp.accumulateAndGet(msgTimestamp, Math::max);
 	}
 
 	/**
 	 * 
-	 * @param ip
-	 * @param port
+	 * @param registry - id of the registry's UDP endpoint
 	 */
-	private void registryStop(String ip, String port) {
-		MyUtil.log("Received stop from registry at ip: " + ip + ":" + port, 2);
+	private void registryStop(int registry) {
+		MyUtil.log("Received stop from registry at ip: " + peers.key(registry), 2);
 		String msg = "ack" + teamName;
-		udp.toPeer(msg, ip, port);
+		udp.toPeer(msg, registry, OutboundScheduler.Priority.CONTROL);
 
 		shutdown();
 	}
@@ -267,13 +635,13 @@ public class CommManager {
 	/**
 	 * Add the list of peers received from the registry to the collection
 	 * of list sources held by the group manager.
-	 * @param msg - list of peers from registry
+	 * @param list - list of peers from registry
 	 */
-	private void receivePeers(Queue<String> msg) {
-		String srcIP = tcp.getIp();
-		String srcPORT = tcp.getPort();
+	private void receivePeers(String[] list) {
+		int src = peers.intern(tcp.getIp(), tcp.getPort());
 		
-		gm.addListSource(srcIP, srcPORT, msg);
+		gm.addListSource(src, list);
+		gossipNow();
 	}
 
 	/**
@@ -293,6 +661,9 @@ public class CommManager {
 	 * 		- list of snippets present in system
 	 */
 	private void getReport() {
+		NodeEvents.Report event = new NodeEvents.Report();
+		event.begin();
+		
 		// number of currentPeers
 		LinkedList<String> currentPeers = gm.getCurrentPeers();
 		MyUtil.log("Reporting number of current peers");
@@ -326,72 +697,103 @@ public class CommManager {
 			tcp.toRegistry(src);
 		}
 
-		// number of messages I sent
-		MyUtil.log("Reporting number of messages sent");
-		tcp.toRegistry(msgsSent.size() + "\n");
-		
-		// my sent messages
+		// number of messages I sent, then my sent messages, read from disk lazily if spilled
 		MyUtil.log("Reporting messages sent");
-		for (String msg : msgsSent) {
-			tcp.toRegistry(msg);
-		}
+		msgsSent.report(tcp::toRegistry);
 		
 		// number of known snippets
 		MyUtil.log("Reporting number of known snippets");
-		LinkedList<String> snippets = gm.getSnippets();
-		tcp.toRegistry(snippets.size() + "\n");
+		SnippetStore.View snippets = gm.getSnippetView();
+		tcp.toRegistry(snippets.count() + "\n");
 		
-		// list of known snippets
+		// list of known snippets, read from disk lazily if evicted
 		MyUtil.log("Reporting all snippets received");
-		snippets.forEach(snip -> {
-			tcp.toRegistry(snip);
+		snippets.forEach((ts, origin, content) -> {
+			tcp.toRegistry(ts + " " + content + " " + peers.key(origin) + "\n");
 		});
 		
-		// number of acks received
-		MyUtil.log("Reporting number of acks received");
-		tcp.toRegistry(acksReceived.size() + "\n");
-		
-		// acks received
+		// number of acks received, then acks received, read from disk lazily if spilled
 		MyUtil.log("Reporting acks received");
-		acksReceived.forEach(ack -> {
-			tcp.toRegistry(ack);
-		});
+		acksReceived.report(tcp::toRegistry);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.snippets = snippets.count();
+			event.commit();
+		}
 	}
 
 	/**
-	 * Opens the current src directory, reads each src file, line
-	 * by line, and sends the contents to the registry.  Signaling
-	 * completion by sending "..." on a single line.
+	 * Sends the language followed by every line of each src file to the
+	 * registry in a single write.  Signaling completion by sending "..."
+	 * on a single line.  The encoded source is cached in a CodeBundle.
 	 */
 	private void getCode() {
-		tcp.toRegistry(language + "\n");
-		String projDir = new File("").getAbsolutePath();
-		File srcCodeDir = new File(projDir + "/src");
-		File[] files = srcCodeDir.listFiles();
-		for (File file : files) {
-			BufferedReader fileReader;
-			try {
-				fileReader = new BufferedReader(new FileReader(file.toString()));
+		tcp.toRegistry(code.get());
+	}
 
-				String line;
-				while((line = fileReader.readLine()) != null) {
-					tcp.toRegistry(line + "\n");
-				}
-				
-			} catch (IOException e) {
-				MyUtil.log("Unable to read from file when sending code.", 2);
-				e.printStackTrace();
-			}
+	/**
+	 * Sends the number of metrics followed by each metric's name and value
+	 * to the registry.
+	 */
+	private void getMetricsReport() {
+		LinkedList<String> report = metrics.report();
+		tcp.toRegistry(report.size() + "\n");
+		for (String m : report) {
+			tcp.toRegistry(m);
 		}
-		tcp.toRegistry("..." + "\n");
 	}
-
+	
+	/**
+	 * Sends the delivery progress of a snippet to the registry in the
+	 * same format as the metrics report.
+	 * @param ts - timestamp of a snippet this process sent
+	 */
+	private void getDeliveryReport(int ts) {
+		LinkedList<String> report = getDeliveryStatus(ts).report();
+		tcp.toRegistry(report.size() + "\n");
+		for (String line : report) {
+			tcp.toRegistry(line);
+		}
+	}
+	
+	/**
+	 * @param ts - timestamp of a snippet this process sent
+	 * @return delivery progress of the snippet
+	 */
+	public DeliveryTracker.Status getDeliveryStatus(int ts) {
+		return deliveries.status(ts);
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	public StripedExecutor getWorkers() {
+		return host.getWorkers();
+	}
+	
+	public NodeHost getHost() {
+		return host;
+	}
+	
+	/**
+	 * @return number of this node on its host
+	 */
+	public int getNodeId() {
+		return nodeId;
+	}
+	
+	public PeerTable getPeers() {
+		return peers;
+	}
+	
 	private void getTeamName() {
 		tcp.toRegistry(teamName + "\n");
 	}
 	
 	private void getLocation() {
-		String myLoc = visibleIp + ":" + udpPort + "\n";
+		String myLoc = visibleIp.join() + ":" + udpPort + "\n";
 		tcp.toRegistry(myLoc);
 	}
 	
@@ -404,84 +806,182 @@ public class CommManager {
 	}
 	
 	boolean reportedToRegistry = false;
+	private AtomicBoolean stopped = new AtomicBoolean(false);
 	
 	/**
 	 * Closes connection to peers via UDP. If registry has
 	 * not yet requested a report then a connection is 
-	 * reestablished with the registry via TCP.
+	 * reestablished with the registry via TCP in the background.
 	 */
 	public void shutdown() {
 		MyUtil.log("Shutting down connection to peers.");
-		timers.forEach((s, t) -> {
-			t.cancel();
-			t.purge();
-		});
+		deliveries.shutdown();
+		catchUps.shutdown();
+		retentionTask.cancel(false);
+		cancelGossip();
 		
 		udp.close();
 		
 		if (!reportedToRegistry) {		
 			reportedToRegistry = true;
-			MyUtil.log("Re-establishing connection with registry.");
-			tcp = new TCPConnection(registryIP, registryPort, this);
-			tcp.listen();
+			TCPConnection connection = tcp;
+			if (connection != null) {
+				MyUtil.log("Re-establishing connection with registry.");
+				connection.reconnect();
+			} // otherwise the first connection is still being made and serves the registry
+		}
+		checkStopped();
+	}
+	
+	/**
+	 * Called by the TCPConnection when the registry connection ends.
+	 */
+	void registryClosed() {
+		checkStopped();
+	}
+	
+	/**
+	 * Tells the host this node is finished once it has shut down and
+	 * nothing is left to exchange with the registry.
+	 */
+	private void checkStopped() {
+		if (!registry.isDone()) {
+			return; // the first connection is still being made
+		}
+		TCPConnection connection = registry.getNow(null);
+		if (!udp.connectionOpen && (connection == null || !connection.isActive()) && stopped.compareAndSet(false, true)) {
+			host.nodeStopped();
 		}
 	}
 	
 	/**
 	 * Removes a peer from the list of current system peers.
-	 * @param ip - IP address of peer to be removed
-	 * @param port - Port number of peer to be removed
+	 * @param peer - id of peer to be removed
 	 */
-	public void drop(String ip, String port) {
-		gm.removePeer(ip, port);
+	public void drop(int peer) {
+		gm.removePeer(peer);
 	}
 	
 	// <outgoing peer>_<me as peer>_<date><newline>
-	private Vector<String> msgsSent = new Vector<String>();
+	private ReportLog msgsSent = new ReportLog("sent");
+	
+	// the next broadcast, replaced whenever a broadcast is rescheduled
+	private final Object gossipLock = new Object();
+	private ScheduledFuture<?> nextGossip;
+	private long gossipGeneration = 0; // broadcasts of an older generation were superseded
+	private long lastChurn = 0; // membership changes seen at the last broadcast
+	private AtomicLong gossipSent;
 	
 	/**
-	 * A thread that broadcasts, in intervals of 't' milliseconds, a 
-	 * random peer in this processes list of current peers to all 
-	 * system peers.  After 5 broadcasts we refresh the list of 
-	 * current peers to remove peers we have not heard from since
-	 * last refresh (5 broadcasts ago).  
-	 * @author joshuaplosz
-	 *
+	 * Starts a broadcast now instead of waiting for the rest of the interval.
 	 */
-	private class TimedMulticast implements Runnable {
-		long interval;
-		
-		TimedMulticast (long interval) {
-			this.interval= interval;
+	private void gossipNow() {
+		scheduleGossip(0);
+	}
+	
+	/**
+	 * Replaces the next broadcast with one after the given delay.
+	 * @param delay - milliseconds until the broadcast
+	 */
+	private void scheduleGossip(long delay) {
+		synchronized (gossipLock) {
+			if (nextGossip != null) {
+				nextGossip.cancel(false);
+			}
+			if (!udp.connectionOpen) {
+				return;
+			}
+			long generation = ++gossipGeneration;
+			nextGossip = host.getScheduler().schedule(() -> gossip(generation), delay, TimeUnit.MILLISECONDS);
 		}
+	}
 		
-		@Override
-		public void run() {			
-			try {
-				while(udp.connectionOpen) {
-					// wait a determined amount of time to send peer messages 
-					Thread.sleep(interval);
-					
-					// update the status of our list of peers
-					gm.refreshPeers();
-					
-					String peer = gm.getRandomPeer();
-					if (peer != null) {
-						timestamp.incrementAndGet();
-						LinkedList<String> peers = gm.getCurrentActivePeers();
-						String msg = "peer" + peer;
-						for (String p : peers) {
-							String comp[] = p.replace("\n", "").split(":");
-							String p_ip = comp[0];
-							String p_port = comp[1];
-							udp.toPeer(msg, p_ip, p_port);
-						}
+	/**
+	 * Called by the group manager when membership changes.  Drops the
+	 * broadcast interval to its minimum and brings the next broadcast
+	 * forward if it is further away than that.
+	 */
+	private void churned() {
+		synchronized (gossipLock) {
+			if (t == MIN_GOSSIP_INTERVAL) {
+				return; // already broadcasting as often as possible
+			}
+			t = MIN_GOSSIP_INTERVAL;
+			if (nextGossip != null && nextGossip.getDelay(TimeUnit.MILLISECONDS) > t) {
+				scheduleGossip(t);
+			}
+		}
+	}
+	
+	/**
+	 * @return datagrams sent by each broadcast: one to the multicast group,
+	 * 		if any, and one to each active peer outside it
+	 */
+	private int gossipDatagrams() {
+		int n = (udp.getGroupId() != PeerTable.UNKNOWN) ? 1 : 0;
+		for (int p : gm.getActivePeerIds()) {
+			if (!udp.isGroupMember(p)) n++;
+		}
+		return n;
+	}
+	
+	private void cancelGossip() {
+		synchronized (gossipLock) {
+			gossipGeneration++;
+			if (nextGossip != null) {
+				nextGossip.cancel(false);
+			}
+		}
+	}
+	
+	/**
+	 * Broadcasts, in intervals of 't' milliseconds, a random peer in this
+	 * processes list of current peers to all system peers.  Before each
+	 * broadcast we refresh the list of current peers to remove peers we
+	 * have not heard from recently.  The interval doubles after each
+	 * broadcast without membership changes since the last one, up to
+	 * MAX_GOSSIP_INTERVAL.  Runs on the host's scheduler and schedules
+	 * the next broadcast unless it has been superseded.
+	 * @param generation - generation the broadcast was scheduled in
+	 */
+	private void gossip(long generation) {
+		synchronized (gossipLock) {
+			if (generation != gossipGeneration) {
+				return;
+			}
+		}
+		try {
+			// update the status of our list of peers
+			gm.refreshPeers();
+			
+			String peer = gm.getRandomPeer();
+			if (peer != null) {
+				timestamp.incrementAndGet();
+				String msg = "peer" + peer;
+				// one datagram to the group reaches its members, and introduces us to the rest of it
+				int group = udp.getGroupId();
+				if (group != PeerTable.UNKNOWN) {
+					udp.toPeer(msg, group, OutboundScheduler.Priority.GOSSIP);
+					gossipSent.incrementAndGet();
+				}
+				for (int p : gm.getActivePeerIds()) {
+					if (!udp.isGroupMember(p)) {
+						udp.toPeer(msg, p, OutboundScheduler.Priority.GOSSIP);
+						gossipSent.incrementAndGet();
 					}
 				}
-				
-			} catch (InterruptedException e) {
-				MyUtil.log("Timed broadcast interrupted.", 2);
-				e.printStackTrace();
+			}
+		} catch (RuntimeException e) {
+			MyUtil.log("Timed broadcast failed.", 2);
+			e.printStackTrace();
+		}
+		
+		synchronized (gossipLock) {
+			if (generation == gossipGeneration) {
+				long churn = gm.getChurn();
+				t = (churn != lastChurn) ? MIN_GOSSIP_INTERVAL : Math.min(t * 2, MAX_GOSSIP_INTERVAL);
+				lastChurn = churn;
+				scheduleGossip(t);
 			}
 		}
 	}
@@ -492,62 +992,157 @@ public class CommManager {
 	 * @param msg - snippet content as a string
 	 */
 	public void sendSnippet(String msg) {
-		if (udp.connectionOpen) {
-			int snipTimestamp = timestamp.incrementAndGet();
-			
-			LinkedList<String> peers = gm.getCurrentActivePeers();
-			for (String p : peers) {
-				p = p.trim();
-				timer = new Timer();
-				TimerTask task = new SnippetSender(msg, p, snipTimestamp);
-				timers.put(p + " " + snipTimestamp, timer);
-				timer.schedule(task, 0, 10 * 1000);
+		publish(Collections.singletonList(msg));
+	}
+	
+	/**
+	 * Stores a batch of snippets as our own and sends them to all system
+	 * peers.  The snippets take consecutive timestamps, and peers that accept
+	 * compressed payloads receive many of them in each datagram.  Waits while
+	 * too many earlier snippets are still waiting for acks.
+	 * @param snippets - snippet contents, in the order they were written
+	 */
+	public void publish(List<String> snippets) {
+		if (udp.connectionOpen && !snippets.isEmpty()) {
+			int first = timestamp.getAndAdd(snippets.size()) + 1;
+			// stored before they are sent, so subscribers see them even if we are in no peer list
+			int self = peers.intern(visibleIp.join(), udpPort);
+			if (self != PeerTable.UNKNOWN) {
+				for (int i = 0; i < snippets.size(); i++) {
+					gm.storeSnippet(first + i, snippets.get(i), self);
+				}
 			}
+			deliveries.track(first, snippets.toArray(new String[0]), gm.getActivePeerIds());
 		}
 	}
 	
-	private class SnippetSender extends TimerTask {
-		String msg;
-		String addr;
-		String snipTimestamp;
-		String mapping;
+	/**
+	 * Reads the first page of snippets received from an origin, including
+	 * our own and those evicted to disk.
+	 * @param origin - origin as an <ip>":"<port> string
+	 * @param pageSize - maximum number of snippets to return
+	 * @return page of <timestamp> <content> <origin> lines, empty if nothing was received from the origin
+	 */
+	public GroupManager.TimelinePage getTimeline(String origin, int pageSize) {
+		int id = peers.find(origin);
+		if (id == PeerTable.UNKNOWN) {
+			if (pageSize <= 0) {
+				throw new IllegalArgumentException("Page size must be positive");
+			}
+			return new GroupManager.TimelinePage();
+		}
+		return gm.getTimeline(id, pageSize);
+	}
+	
+	/**
+	 * Reads the page of snippets following a cursor returned with an
+	 * earlier page of this node's timelines.
+	 * @param cursor - nextCursor of the previous page
+	 * @param pageSize - maximum number of snippets to return
+	 * @return page of <timestamp> <content> <origin> lines
+	 * @throws IllegalArgumentException if the cursor is not one this node returned
+	 */
+	public GroupManager.TimelinePage getTimelineAfter(String cursor, int pageSize) {
+		return gm.getTimeline(cursor, pageSize);
+	}
+	
+	/**
+	 * Pushes each new snippet, including our own, to a listener as it is
+	 * stored.  When the listener falls DEFAULT_FEED_CAPACITY snippets behind,
+	 * the oldest queued snippet is dropped, so a slow listener never holds up
+	 * the node.
+	 * @param filter - selects the snippets the listener receives
+	 * @param listener - receives snippets on its own thread
+	 * @return subscription that can be cancelled
+	 */
+	public SnippetFeed.Subscription subscribe(SnippetFeed.Filter filter, SnippetFeed.Listener listener) {
+		return subscribe(filter, listener, DEFAULT_FEED_CAPACITY, SnippetFeed.Overflow.DROP_OLDEST);
+	}
+	
+	/**
+	 * Pushes each new snippet, including our own, to a listener as it is stored.
+	 * With Overflow.BLOCK a full queue stalls the worker storing the snippet,
+	 * and with it every node sharing the host's workers, for up to
+	 * SnippetFeed.MAX_BLOCK milliseconds per snippet.
+	 * @param filter - selects the snippets the listener receives
+	 * @param listener - receives snippets on its own thread
+	 * @param capacity - number of snippets that may wait for the listener
+	 * @param overflow - what to do with a snippet when capacity is reached
+	 * @return subscription that can be cancelled
+	 */
+	public SnippetFeed.Subscription subscribe(SnippetFeed.Filter filter, SnippetFeed.Listener listener,
+			int capacity, SnippetFeed.Overflow overflow) {
+		return gm.getFeed().subscribe(filter, listener, capacity, overflow);
+	}
+	
+	/**
+	 * Sends snippets for the delivery tracker, recording each send,
+	 * and marks peers that never acknowledged a snippet inactive.
+	 */
+	private class DeliveryLink implements DeliveryTracker.Link {
 		
-		public SnippetSender(String msg, String addr, int snipTimeStamp) {
-			this.msg = msg;
-			this.addr = addr;
-			snipTimestamp = String.valueOf(snipTimeStamp);
-			mapping = this.addr + " " + snipTimestamp;
+		@Override
+		public void send(int peer, int[] timestamps, String[] contents, int count) {
+			sendSnippets(peer, timestamps, contents, count, compressionPeers.contains(peer));
+			recordSent(peer, count);
 		}
-
+		
+		/**
+		 * Sends new snippets once to the multicast group for the peers that
+		 * are members of it, and to each of the other peers.  Re-sent snippets
+		 * go to each peer that has not acknowledged them.
+		 */
 		@Override
-		public void run() {
-			if (expectingAcks.containsKey(mapping)) {
-				Integer count = expectingAcks.get(mapping);
-				if (count <= 3) {
-					expectingAcks.replace(mapping, ++count);
+		public void publish(int[] peers, int[] timestamps, String[] contents, int count) {
+			int members = 0;
+			boolean compress = true; // only if every member inflates compressed payloads
+			for (int p : peers) {
+				if (udp.isGroupMember(p)) {
+					members++;
+					compress &= compressionPeers.contains(p);
 				} else {
-					expectingAcks.remove(mapping);
-					gm.setPeerInactive(addr);
-					this.cancel();
-					canceltTimer(this);
+					send(p, timestamps, contents, count);
 				}
-			} else {
-				expectingAcks.put(mapping, 1);				
 			}
-			String[] ip_port = addr.split(":");
-			udp.toPeer("snip " + snipTimestamp + " " + msg, ip_port[0], ip_port[1]);
-			
+			if (members == 0) {
+				return;
+			}
+			sendSnippets(udp.getGroupId(), timestamps, contents, count, compress);
+			for (int p : peers) {
+				if (udp.isGroupMember(p)) {
+					recordSent(p, count);
+				}
+			}
+		}
+		
+		/**
+		 * @param destination - id of a peer or of the multicast group
+		 * @param compress - true if the destination accepts compressed payloads
+		 */
+		private void sendSnippets(int destination, int[] timestamps, String[] contents, int count, boolean compress) {
+			Bundler out = new Bundler(destination, OutboundScheduler.Priority.SNIPPET, count > 1 && compress);
+			for (int i = 0; i < count; i++) {
+				out.add("snip " + timestamps[i] + " " + contents[i]);
+			}
+			out.finish();
+		}
+		
+		/**
+		 * Records the snippets sent to a peer for the registry report.
+		 */
+		private void recordSent(int peer, int count) {
 			LocalDateTime dateTime = LocalDateTime.now();
 			DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-			msgsSent.add(ip_port[0] + ":" + ip_port[1] + " " +
-						 visibleIp + ":" + udpPort + " " + 
-						 dateTime.format(format) + "\n");
+			String sent = peers.key(peer) + " " +
+						  visibleIp.join() + ":" + udpPort + " " + 
+						  dateTime.format(format) + "\n";
+			msgsSent.add(sent, count);
 		}
-
-		private void canceltTimer(SnippetSender task) {
-			Timer timer = timers.get(task);
-			timer.cancel();
-			timer.purge();
+		
+		@Override
+		public void failed(int peer) {
+			udp.leftGroup(peer);
+			gm.setPeerInactive(peer);
 		}
 	}
 }
@@ -0,0 +1,357 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the delivery of each snippet this process sends until every peer
+ * has acknowledged it or has been given up on.  A snippet in flight takes
+ * one slot in a set of parallel arrays and a bitset over interned peer ids
+ * of the peers yet to acknowledge it, so thousands of peers cost a few
+ * hundred bytes per snippet.  Snippets are re-sent to peers that have not
+ * acknowledged them by a task on the host's scheduler.  Snippets published
+ * together are handed to the link as one batch for every peer, and snippets
+ * due for re-sending as one batch per peer, so they can share datagrams.
+ * At most MAX_IN_FLIGHT snippets are tracked; publishing more waits until
+ * earlier snippets are acknowledged or expire.
+ * @author joshuaplosz
+ *
+ */
+public class DeliveryTracker {
+
+	/**
+	 * Sends snippets and reports peers that never acknowledged one.
+	 */
+	public interface Link {
+		/**
+		 * Sends snippets to a peer.  The arrays are only valid during the call.
+		 * @param peer - id of the destination peer
+		 * @param timestamps - timestamps of the snippets
+		 * @param contents - contents of the snippets
+		 * @param count - number of snippets to send
+		 */
+		void send(int peer, int[] timestamps, String[] contents, int count);
+		
+		/**
+		 * Sends new snippets to every peer they are tracked for.  A single
+		 * datagram may reach several of the peers.
+		 * @param peers - ids of the destination peers
+		 * @param timestamps - timestamps of the snippets
+		 * @param contents - contents of the snippets
+		 * @param count - number of snippets to send
+		 */
+		void publish(int[] peers, int[] timestamps, String[] contents, int count);
+		void failed(int peer);
+	}
+	
+	static final int MAX_ATTEMPTS = 4; // sends to a peer before it is given up on
+	static final long RETRY_INTERVAL = 10 * 1000; // milliseconds between sends of a snippet
+	private static final long TICK = 1000; // milliseconds between checks for snippets to re-send
+	private static final int MAX_FINISHED = 1024; // finished deliveries kept for status queries
+	static final int MAX_IN_FLIGHT = 64 * 1024; // snippets tracked before publishing waits
+	
+	/**
+	 * Delivery progress of a single snippet.
+	 */
+	public static class Status {
+		public final int timestamp;
+		public final String state; // "sending", "delivered", "expired" or "unknown"
+		public final int peers;    // peers the snippet was sent to
+		public final int acked;
+		public final int pending;
+		public final int failed;
+		public final int attempts;
+		
+		Status(int timestamp, String state, int peers, int acked, int pending, int failed, int attempts) {
+			this.timestamp = timestamp;
+			this.state = state;
+			this.peers = peers;
+			this.acked = acked;
+			this.pending = pending;
+			this.failed = failed;
+			this.attempts = attempts;
+		}
+		
+		/**
+		 * Each entry is formatted as <name>" "<value>"\n".
+		 * @return list of the status fields as strings
+		 */
+		public LinkedList<String> report() {
+			LinkedList<String> report = new LinkedList<>();
+			report.add("timestamp " + timestamp + "\n");
+			report.add("state " + state + "\n");
+			report.add("peers " + peers + "\n");
+			report.add("acked " + acked + "\n");
+			report.add("pending " + pending + "\n");
+			report.add("failed " + failed + "\n");
+			report.add("attempts " + attempts + "\n");
+			return report;
+		}
+	}
+	
+	private final Link link;
+	private final ScheduledFuture<?> retries;
+	
+	// snippets in flight, indexed by slot and guarded by this
+	private int[] timestamps = new int[64];
+	private String[] contents = new String[64];
+	private BitSet[] pending = new BitSet[64]; // ids of peers yet to ack
+	private int[] targets = new int[64];
+	private int[] acked = new int[64];
+	private byte[] attempts = new byte[64];
+	private long[] nextSend = new long[64];
+	private int[] free = new int[64]; // stack of unused slots below used
+	private int freeCount = 0;
+	private int used = 0;
+	private final Map<Integer, Integer> slots = new HashMap<>(); // timestamp to slot
+	private int waiters = 0; // publishers waiting for room
+	private boolean stopped = false;
+	
+	// most recently finished deliveries, guarded by this
+	private final Map<Integer, Status> finished = new LinkedHashMap<Integer, Status>() {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Status> eldest) {
+			return size() > MAX_FINISHED;
+		}
+	};
+	
+	/**
+	 * @param link - sends snippets and reports failed peers
+	 * @param scheduler - runs the re-sending of snippets, shared with other nodes
+	 */
+	DeliveryTracker(Link link, ScheduledExecutorService scheduler) {
+		this.link = link;
+		retries = scheduler.scheduleWithFixedDelay(this::resend, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Sends snippets with consecutive timestamps to each peer and keeps
+	 * re-sending them to the peers that have not acknowledged them.  Waits
+	 * while MAX_IN_FLIGHT snippets are in flight, so it must not be called
+	 * from the scheduler, the workers or an event loop.  A batch larger than
+	 * MAX_IN_FLIGHT only waits for the tracker to empty.
+	 * @param firstTimestamp - timestamp of the first snippet
+	 * @param contents - snippet contents, in timestamp order
+	 * @param peers - ids of peers to deliver the snippets to
+	 */
+	public void track(int firstTimestamp, String[] contents, int[] peers) {
+		int[] timestamps = new int[contents.length];
+		synchronized (this) {
+			if (peers.length > 0) {
+				awaitRoom(contents.length);
+			}
+			long next = System.currentTimeMillis() + RETRY_INTERVAL;
+			for (int i = 0; i < contents.length; i++) {
+				int ts = firstTimestamp + i;
+				timestamps[i] = ts;
+				if (peers.length == 0) {
+					finished.put(ts, new Status(ts, "delivered", 0, 0, 0, 0, 0));
+					continue;
+				}
+				int s = allocate();
+				this.timestamps[s] = ts;
+				this.contents[s] = contents[i];
+				for (int p : peers) {
+					pending[s].set(p);
+				}
+				targets[s] = pending[s].cardinality();
+				acked[s] = 0;
+				attempts[s] = 1;
+				nextSend[s] = next;
+				slots.put(ts, s);
+			}
+		}
+		if (peers.length > 0) {
+			link.publish(peers, timestamps, contents, contents.length);
+		}
+	}
+	
+	/**
+	 * Waits until count more snippets fit in flight, every snippet has
+	 * finished or the tracker is shut down.  Caller holds this.
+	 */
+	private void awaitRoom(int count) {
+		boolean interrupted = false;
+		waiters++;
+		while (!stopped && !slots.isEmpty() && slots.size() + count > MAX_IN_FLIGHT) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true; // keep waiting, the snippets are still sent
+			}
+		}
+		waiters--;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Stops re-sending a snippet to the peer that acknowledged it.
+	 * @param peer - id of the peer that sent the ack
+	 * @param timestamp - timestamp of the acknowledged snippet
+	 * @return true if the ack was expected
+	 */
+	public synchronized boolean ack(int peer, int timestamp) {
+		Integer s = slots.get(timestamp);
+		if (s == null || !pending[s].get(peer)) {
+			return false;
+		}
+		pending[s].clear(peer);
+		acked[s]++;
+		if (pending[s].isEmpty()) {
+			finish(s, "delivered", 0);
+		}
+		return true;
+	}
+	
+	/**
+	 * @param timestamp - timestamp of a snippet this process sent
+	 * @return delivery progress of the snippet, with state "unknown" if it is
+	 * 		not in flight and not among the most recently finished
+	 */
+	public synchronized Status status(int timestamp) {
+		Integer s = slots.get(timestamp);
+		if (s != null) {
+			return new Status(timestamp, "sending", targets[s], acked[s],
+					targets[s] - acked[s], 0, attempts[s]);
+		}
+		Status done = finished.get(timestamp);
+		if (done != null) {
+			return done;
+		}
+		return new Status(timestamp, "unknown", 0, 0, 0, 0, 0);
+	}
+	
+	/**
+	 * @return number of snippets waiting on at least one ack
+	 */
+	public synchronized int inFlight() {
+		return slots.size();
+	}
+	
+	/**
+	 * Stops re-sending snippets and releases publishers waiting for room.
+	 */
+	public void shutdown() {
+		retries.cancel(false);
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Re-sends every snippet whose retry interval has passed to the peers that
+	 * have not acknowledged it, and gives up on those peers after MAX_ATTEMPTS sends.
+	 * Snippets due at the same time are sent to each peer together.
+	 */
+	private void resend() {
+		int[] dueTimestamps = new int[16];
+		String[] dueContents = new String[16];
+		BitSet[] duePending = new BitSet[16];
+		int due = 0;
+		BitSet waiting = new BitSet(); // peers that have at least one due snippet
+		int[] failed = new int[0];
+		int failedCount = 0;
+		
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (int s = 0; s < used; s++) {
+				if (contents[s] == null || nextSend[s] > now) {
+					continue;
+				}
+				if (attempts[s] >= MAX_ATTEMPTS) {
+					int n = pending[s].cardinality();
+					if (failedCount + n > failed.length) {
+						failed = Arrays.copyOf(failed, Math.max(failed.length * 2, failedCount + n));
+					}
+					for (int p = pending[s].nextSetBit(0); p >= 0; p = pending[s].nextSetBit(p + 1)) {
+						failed[failedCount++] = p;
+					}
+					finish(s, "expired", n);
+					continue;
+				}
+				attempts[s]++;
+				nextSend[s] = now + RETRY_INTERVAL;
+				
+				if (due == dueTimestamps.length) {
+					dueTimestamps = Arrays.copyOf(dueTimestamps, due * 2);
+					dueContents = Arrays.copyOf(dueContents, due * 2);
+					duePending = Arrays.copyOf(duePending, due * 2);
+				}
+				dueTimestamps[due] = timestamps[s];
+				dueContents[due] = contents[s];
+				duePending[due] = (BitSet) pending[s].clone();
+				waiting.or(pending[s]);
+				due++;
+			}
+		}
+		
+		try {
+			int[] sendTimestamps = new int[due];
+			String[] sendContents = new String[due];
+			for (int p = waiting.nextSetBit(0); p >= 0; p = waiting.nextSetBit(p + 1)) {
+				int n = 0;
+				for (int i = 0; i < due; i++) {
+					if (duePending[i].get(p)) {
+						sendTimestamps[n] = dueTimestamps[i];
+						sendContents[n] = dueContents[i];
+						n++;
+					}
+				}
+				link.send(p, sendTimestamps, sendContents, n);
+			}
+			for (int i = 0; i < failedCount; i++) {
+				link.failed(failed[i]);
+			}
+		} catch (RuntimeException e) {
+			// keep the retry thread alive
+			MyUtil.log("Delivery retry failed: " + e.getMessage(), 2);
+		}
+	}
+	
+	/**
+	 * Records the outcome of a delivery and frees its slot.
+	 */
+	private void finish(int s, String state, int failedPeers) {
+		int ts = timestamps[s];
+		finished.put(ts, new Status(ts, state, targets[s], acked[s], 0, failedPeers, attempts[s]));
+		slots.remove(ts);
+		contents[s] = null;
+		pending[s].clear();
+		free[freeCount++] = s;
+		if (waiters > 0) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * @return an unused slot, growing the arrays if every slot is in use
+	 */
+	private int allocate() {
+		if (freeCount > 0) {
+			return free[--freeCount];
+		}
+		if (used == timestamps.length) {
+			int size = used * 2;
+			timestamps = Arrays.copyOf(timestamps, size);
+			contents = Arrays.copyOf(contents, size);
+			pending = Arrays.copyOf(pending, size);
+			targets = Arrays.copyOf(targets, size);
+			acked = Arrays.copyOf(acked, size);
+			attempts = Arrays.copyOf(attempts, size);
+			nextSend = Arrays.copyOf(nextSend, size);
+			free = Arrays.copyOf(free, size);
+		}
+		pending[used] = new BitSet();
+		return used++;
+	}
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread that waits on a Selector for any number of channels, from
+ * any number of nodes, and calls each channel's handler when it is ready.
+ * Handlers run on the loop thread and must not block.  Other threads hand
+ * the loop short tasks, such as changing a key's interest, with execute().
+ * @author joshuaplosz
+ *
+ */
+public class EventLoop implements Runnable {
+
+	/**
+	 * Called on the loop thread when a registered channel is ready.
+	 */
+	public interface Handler {
+		void ready(SelectionKey key) throws IOException;
+	}
+	
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ArrayList<Runnable> batch = new ArrayList<Runnable>(); // tasks taken for the current turn
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private volatile boolean running = true;
+	
+	/**
+	 * Opens the selector and starts the loop thread.
+	 * @param name - name of the loop thread
+	 */
+	EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name); // keeps the process alive until the host shuts down
+		thread.start();
+	}
+	
+	/**
+	 * Registers a channel with the loop.  May be called from any thread.
+	 * @param channel - non-blocking channel
+	 * @param ops - interest set, e.g. SelectionKey.OP_READ
+	 * @param handler - called when the channel is ready
+	 * @return key of the registered channel
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+		if (inLoop()) {
+			return channel.register(selector, ops, handler);
+		}
+		CompletableFuture<SelectionKey> key = new CompletableFuture<SelectionKey>();
+		execute(() -> {
+			try {
+				key.complete(channel.register(selector, ops, handler));
+			} catch (ClosedChannelException | RuntimeException e) {
+				key.completeExceptionally(e);
+			}
+		});
+		try {
+			return key.join();
+		} catch (RuntimeException e) {
+			throw new IOException("Unable to register channel", e.getCause());
+		}
+	}
+	
+	/**
+	 * Runs a task on the loop thread, after the channels currently being handled.
+	 * A task queued by a task runs after the channels have had another turn.
+	 * @param task - short, non-blocking task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inLoop() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * @return true if called from the loop thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				// a task queued from the loop itself does not wake the selector, so don't wait for it
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+				wakeupPending.set(false);
+				
+				for (SelectionKey key : selector.selectedKeys()) {
+					try {
+						((Handler) key.attachment()).ready(key);
+					} catch (CancelledKeyException e) {
+						// channel was closed while it was being handled
+					} catch (IOException | RuntimeException e) {
+						MyUtil.log("Error while handling channel on " + thread.getName() + ": " + e, 2);
+					}
+				}
+				selector.selectedKeys().clear();
+				
+				// only the tasks queued so far run, so a task that keeps queueing 
+				// itself cannot keep the loop from selecting
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					batch.add(task);
+				}
+				for (Runnable t : batch) {
+					try {
+						t.run();
+					} catch (RuntimeException e) {
+						MyUtil.log("Error while running task on " + thread.getName() + ": " + e, 2);
+					}
+				}
+				batch.clear();
+			} catch (IOException e) {
+				MyUtil.log("Selector failed on " + thread.getName(), 2);
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Stops the loop.  Channels registered with it are not closed.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+}
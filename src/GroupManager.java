@@ -1,47 +1,97 @@
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Base64;
 import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Random;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Group manager is responsible for the storage system peers, sources, and snippets.
  * It also provides a CRUD interface for those storages for the communication manager.
+ * All storages are safe to use from many threads at once.  Readers never take a lock
+ * that a writer on the receive path has to wait for: they either iterate concurrent
+ * collections, read an immutable snapshot, or use an optimistic read.
  * @author joshuaplosz
  *
  */
 public class GroupManager {
+
+	// interned ids of every endpoint seen by this process
+	private PeerTable peers;
+	
+	// mapping of a peer's id to the peer
+	private ConcurrentHashMap<Integer, Peer> currentPeers = new ConcurrentHashMap<Integer, Peer>();
+	// currentPeers in the order they were added, replaced whenever a peer is added or removed
+	private volatile Peer[] peerSnapshot = new Peer[0];
+	// serializes writers of currentPeers and peerSnapshot so the two always hold the same peers
+	private final Object membershipLock = new Object();
 	
-	private Vector<Peer> currentPeers = new Vector<Peer>();
-	private Vector<Source> singleSources = new Vector<Source>();
-	private Vector<Source> listSources = new Vector<Source>();
-	private Vector<Snippet> snippets = new Vector<Snippet>();
+	// ids of every source that has provided a single peer
+	private Set<Integer> singleSourceIndex = ConcurrentHashMap.newKeySet();
+	private ConcurrentLinkedQueue<Source> singleSources = new ConcurrentLinkedQueue<Source>();
+	private ConcurrentLinkedQueue<Source> listSources = new ConcurrentLinkedQueue<Source>();
+	// mapping of a list source's id to the last list of peers it provided
+	private ConcurrentHashMap<Integer, PeerList> lastLists = new ConcurrentHashMap<Integer, PeerList>();
+	// every snippet in the order it was received
+	private SnippetStore snippets;
+	private Retention retention;
+	// mapping of a snippet origin's id to the snippets received from that origin
+	private ConcurrentHashMap<Integer, Timeline> timelines = new ConcurrentHashMap<Integer, Timeline>();
+	// timeline entries of every snippet evicted to disk
+	private ColdKeySet coldKeys = new ColdKeySet();
+	// row the timelines were last trimmed to
+	private int trimmedTo = 0;
+	// evicted rows read for a single timeline page
+	private static final int MAX_COLD_SCAN = 64 * 1024;
+	// bytes in a timeline cursor: origin id, row and timestamp
+	private static final int CURSOR_SIZE = 12;
+	// subscribers that are pushed each new snippet
+	private SnippetFeed feed;
+	// membership changes: peers added, removed, failed or re-activated
+	private AtomicLong churn = new AtomicLong(0);
+	private volatile Runnable churnListener;
 	
 	/**
-	 * A single system peer uniquely identified by IP address
-	 * and port number.  A date signature is used to signify
-	 * the last time this process received a message from this peer.
+	 * @param peers - table that every peer and source is interned in
+	 * @param offHeapSnippets - true to keep snippet content outside the Java heap
+	 * @param retention - limits on the snippets and sources kept in memory
+	 */
+	GroupManager(PeerTable peers, boolean offHeapSnippets, Retention retention) {
+		this.peers = peers;
+		this.snippets = new SnippetStore(offHeapSnippets);
+		this.retention = retention;
+		this.feed = new SnippetFeed(peers);
+	}
+	
+	/**
+	 * A single system peer uniquely identified by its interned id.
+	 * The IP address and port number are shared with the PeerTable.
+	 * A date signature is used to signify the last time this 
+	 * process received a message from this peer.
 	 * @author joshuaplosz
 	 *
 	 */
 	private class Peer {
+		public int id;
 		public String ip;
 		public String port;
-		public LocalDateTime lastHeardFrom;
-		public boolean active = true;
-		
-		Peer(String peer) {
-			String[] p = peer.split(":");
-			this.ip = p[0];
-			this.port = p[1];
-			lastHeardFrom = LocalDateTime.now();
-		}
+		public volatile LocalDateTime lastHeardFrom;
+		public volatile boolean active = true;
+		public volatile boolean heard = false; // true once a message has been received from the peer itself
 		
-		Peer(String ip, String port) {
-			this.ip = ip;
-			this.port = port;
+		Peer(int id) {
+			this.id = id;
+			this.ip = peers.ip(id);
+			this.port = peers.port(id);
 			lastHeardFrom = LocalDateTime.now();
 		}
 		
@@ -53,7 +103,10 @@ public class GroupManager {
 		}
 		
 		public void setActive(boolean status) {
-			active = status;
+			if (active != status) {
+				active = status;
+				churned();
+			}
 		}
 		
 		public boolean getActive() {
@@ -69,110 +122,388 @@ public class GroupManager {
 	/**
 	 * A single source providing at least one peer in the system.
 	 * The source location is stored as a peer and a date is recorded for when
-	 * the source was received.  A formatted copy of the date as a string 
+	 * the source was received.  A formatted copy of the date as a string
 	 * is also recorded.
 	 * @author joshuaplosz
 	 *
 	 */
 	private class Source {
 		public Peer srcLoc;
-		public LinkedList<Peer> peersFromSrc;
+		public int[] peersFromSrc; // ids of the peers provided, may be shared between sources
 		public LocalDateTime dateTime;
 		public String dateTimeStr;
 		
-		Source(String ip, String port) {
-			srcLoc = new Peer(ip, port);
-			peersFromSrc = null;
-			dateTime = null;
-		}
-		
-		Source(String ip, String port, LinkedList<Peer> peers) {
-			srcLoc = new Peer(ip, port);
+		Source(int id, int[] peers) {
+			srcLoc = new Peer(id);
 			peersFromSrc = peers;
 			
 			dateTime = LocalDateTime.now();
 			DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 			dateTimeStr = dateTime.format(format);
-			
-			for (Peer peer : peers) {
-				addPeer(peer);
-			}
 		}
 	}
 	
 	/**
-	 * A sinlge snippet transmitted through the system.
-	 * Senders timestamp is recorded as well at the snippet content and 
-	 * source of the snippet.
+	 * The most recent list of peers received from a list source, kept
+	 * so the next list from the same source can be applied as a delta.
+	 */
+	private static class PeerList {
+		public int[] ids;		// peer ids in the order the source listed them
+		public BitSet listed;	// the same ids as a set
+		public Source source;	// entry in listSources the list was recorded as
+		
+		PeerList(int[] ids, BitSet listed, Source source) {
+			this.ids = ids;
+			this.listed = listed;
+			this.source = source;
+		}
+	}
+	
+	/**
+	 * The snippets received from a single origin that are still in memory, ordered
+	 * by the origin's timestamp.  The timeline holds the timestamp and SnippetStore
+	 * row of each snippet.  Once a snippet's row is evicted its entry is moved to
+	 * coldKeys, which recognises the snippet as a duplicate if it arrives again,
+	 * however old it is, so the timeline stays as small as the rows in memory.
+	 * Entries live in [head, end) of the arrays, so trimming the oldest entries
+	 * does not move the rest.  Writers hold the write lock; readers use an
+	 * optimistic read and only fall back to the read lock if a writer changed
+	 * the timeline while they were reading.
 	 * @author joshuaplosz
 	 *
 	 */
-	private class Snippet {
-		public int timestamp;
-		public String content;
-		public Source src;
+	private class Timeline {
+		private final StampedLock lock = new StampedLock();
+		private final int origin;
+		private int[] timestamps = new int[8];
+		private int[] rows = new int[8];
+		private int head = 0;
+		private int end = 0;
+		private int coldMax = Integer.MIN_VALUE; // greatest timestamp moved to coldKeys
+		private int coldFrom = Integer.MAX_VALUE; // lowest row of an entry moved to coldKeys
+		private int coldTo = 0; // every entry moved to coldKeys has a row below it
+		
+		Timeline(int origin) {
+			this.origin = origin;
+		}
+		
+		/**
+		 * Stores a snippet and adds it in timestamp order unless the origin already 
+		 * sent a snippet with the same timestamp.  Snippets normally arrive in order so
+		 * the common case is a plain append; catch-up snippets may arrive late
+		 * and are inserted at their sorted position.
+		 * @param ts - snippet's timestamp
+		 * @param content - snippet's content
+		 * @return false if the snippet is a duplicate and was not added
+		 */
+		public boolean add(int ts, String content) {
+			long stamp = lock.writeLock();
+			try {
+				int i = indexAfter(timestamps, head, end, ts);
+				if (i > head && timestamps[i - 1] == ts) {
+					return false;
+				}
+				if (ts <= coldMax && coldKeys.contains(origin, ts)) {
+					return false;
+				}
+				if (end == timestamps.length) {
+					int size = end - head;
+					i -= head;
+					resize(size < timestamps.length / 2 ? timestamps.length : size * 2);
+				}
+				System.arraycopy(timestamps, i, timestamps, i + 1, end - i);
+				System.arraycopy(rows, i, rows, i + 1, end - i);
+				timestamps[i] = ts;
+				rows[i] = snippets.append(ts, origin, content);
+				end++;
+				return true;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
 		
-		Snippet(int ts, String c, Source src) {
-			timestamp = ts;
-			content = c;
-			this.src = src;
+		/**
+		 * Moves the oldest entries whose rows were evicted to coldKeys.  An
+		 * evicted entry that follows one still in memory, such as a late
+		 * catch-up snippet, stays until the entries before it are evicted too.
+		 * @param firstRow - oldest row in memory
+		 */
+		public void trim(int firstRow) {
+			long stamp = lock.writeLock();
+			try {
+				int i = head;
+				while (i < end && rows[i] < firstRow && coldKeys.add(origin, timestamps[i])) {
+					coldMax = Math.max(coldMax, timestamps[i]);
+					coldFrom = Math.min(coldFrom, rows[i]);
+					coldTo = Math.max(coldTo, rows[i] + 1);
+					i++;
+				}
+				head = i;
+				int size = end - head;
+				if (timestamps.length > 64 && size < timestamps.length / 4) {
+					resize(Math.max(8, size * 2)); // give back the memory of a burst
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		
+		/**
+		 * Moves the entries to the start of new arrays.  Caller holds the write lock.
+		 */
+		private void resize(int capacity) {
+			int size = end - head;
+			int[] t = new int[capacity];
+			int[] r = new int[capacity];
+			System.arraycopy(timestamps, head, t, 0, size);
+			System.arraycopy(rows, head, r, 0, size);
+			timestamps = t;
+			rows = r;
+			head = 0;
+			end = size;
+		}
+		
+		/**
+		 * @return rows the entries moved to coldKeys lie in, as <lowest> << 32 | <past the highest>,
+		 * 		or 0 if there are none
+		 */
+		public long coldRows() {
+			long stamp = lock.readLock();
+			try {
+				return coldTo == 0 ? 0 : ((long) coldFrom << 32) | coldTo;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		/**
+		 * Copies up to pageSize entries following the provided timestamp,
+		 * skipping entries with rows below minRow.
+		 * @param afterTs - timestamp to read past
+		 * @param minRow - lowest row to copy
+		 * @param pageSize - maximum number of entries to copy
+		 * @param more - set to true if entries remain after the page, may be null
+		 * @return entries following afterTs as <timestamp> << 32 | <SnippetStore row>,
+		 * 		or null if entries at or above minRow were moved to coldKeys
+		 */
+		public long[] read(int afterTs, int minRow, int pageSize, boolean[] more) {
+			long stamp = lock.tryOptimisticRead();
+			long[] page = null;
+			boolean hasMore = false;
+			try {
+				int[] t = timestamps;
+				int[] r = rows;
+				int h = head;
+				int n = Math.min(end, Math.min(t.length, r.length));
+				if (coldTo <= minRow) {
+					page = entries(t, r, indexAfter(t, h, n, afterTs), n, minRow, pageSize);
+					hasMore = page.length > 0 && page[page.length - 1] >> 32 < t[n - 1];
+				}
+			} catch (RuntimeException ex) {
+				stamp = 0; // a concurrent write left the entries inconsistent
+			}
+			
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					page = null;
+					hasMore = false;
+					if (coldTo <= minRow) {
+						page = entries(timestamps, rows, indexAfter(timestamps, head, end, afterTs), end, minRow, pageSize);
+						hasMore = page.length > 0 && page[page.length - 1] >> 32 < timestamps[end - 1];
+					}
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			if (more != null) more[0] = hasMore;
+			return page;
+		}
+		
+		private long[] entries(int[] t, int[] r, int start, int n, int minRow, int pageSize) {
+			long[] e = new long[Math.max(0, Math.min(pageSize, n - start))];
+			int count = 0;
+			for (int i = start; i < n && count < e.length; i++) {
+				if (r[i] >= minRow) {
+					e[count++] = ((long) t[i] << 32) | (r[i] & 0xffffffffL);
+				}
+			}
+			return count == e.length ? e : Arrays.copyOf(e, count);
+		}
+		
+		/**
+		 * Binary search for the first entry with a timestamp greater than the one provided.
+		 * @param t - timestamps to search
+		 * @param from - index of the first valid entry
+		 * @param n - index past the last valid entry
+		 * @param ts - timestamp to search past
+		 * @return index of the first entry after ts, or n if none
+		 */
+		private int indexAfter(int[] t, int from, int n, int ts) {
+			int lo = from;
+			int hi = n;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (t[mid] <= ts) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
 		}
 	}
 	
+	/**
+	 * A single page of snippets read from an origin's timeline.
+	 * The cursor is opaque to callers and is handed back to
+	 * getTimeline to read the following page.
+	 * @author joshuaplosz
+	 *
+	 */
+	public static class TimelinePage {
+		public LinkedList<String> snippets = new LinkedList<String>();
+		public String nextCursor; // null when the end of the timeline was reached
+	}
+	
 	/**
 	 * Adds a peer to currentPeers if it doesn't already exist.
 	 * @param peer
-	 * @return true if the provided peer already existed in currentPeers
+	 * @return true if the provided peer was added, false if it already existed in currentPeers
 	 */
 	private boolean addPeer(Peer peer) {
-		synchronized(currentPeers) {
-			if (!currentPeers.isEmpty()) {
-				Peer p = findCurrentPeer(peer);
-				if (p == null) {
-					currentPeers.add(peer);
-					MyUtil.log("Adding peer: " + peer, 3);
-					return false;
-				} else {
-					return false;
-				}
-			} else {
-				currentPeers.add(peer);
-				MyUtil.log("Adding peer: " + peer, 3);
-				return true;
+		if (currentPeers.containsKey(peer.id)) {
+			return false; // common case, no lock needed
+		}
+		synchronized(membershipLock) {
+			if (currentPeers.putIfAbsent(peer.id, peer) != null) {
+				return false;
 			}
+			Peer[] snapshot = Arrays.copyOf(peerSnapshot, peerSnapshot.length + 1);
+			snapshot[snapshot.length - 1] = peer;
+			peerSnapshot = snapshot;
 		}
+		MyUtil.log("Adding peer: " + peer, 3);
+		churned();
+		return true;
+	}
+	
+	/**
+	 * Counts a change in membership and tells the churn listener.
+	 */
+	private void churned() {
+		churn.incrementAndGet();
+		Runnable listener = churnListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+	
+	/**
+	 * @param listener - called on the changing thread whenever a peer is added,
+	 * 		removed, fails or becomes active again
+	 */
+	public void setChurnListener(Runnable listener) {
+		churnListener = listener;
+	}
+	
+	/**
+	 * @return number of membership changes seen so far
+	 */
+	public long getChurn() {
+		return churn.get();
 	}
 	
 	/**
 	 * Adds to listSources a source that provided a list of peers.
-	 * @param ip - IP address of source
-	 * @param port - Port number of source
-	 * @param msg - number of peers provided followed by the list of peers
+	 * The list is compared to the previous list from the same source and only
+	 * the difference is applied to currentPeers: listed peers that are new are 
+	 * added, and peers that are no longer listed are removed unless this process
+	 * has heard from them directly.  The membership snapshot is published once
+	 * for the whole list.
+	 * @param src - id of source
+	 * @param list - peers provided by the source as <ip>":"<port> strings
 	 */
-	public void addListSource(String ip, String port, Queue<String> msg) {
-		int numOfPeers = Integer.parseInt(msg.remove());
-		LinkedList<Peer> peers = new LinkedList<Peer>();
-		while (!msg.isEmpty()) {
-			Peer p = new Peer(msg.remove());
-			peers.add(p);
+	public void addListSource(int src, String[] list) {
+		NodeEvents.AddListSource event = new NodeEvents.AddListSource();
+		event.begin();
+		
+		int[] ids = new int[list.length];
+		int n = 0;
+		BitSet listed = new BitSet();
+		for (String line : list) {
+			int id = peers.intern(line);
+			if (id == PeerTable.UNKNOWN || listed.get(id)) {
+				continue;
+			}
+			listed.set(id);
+			ids[n++] = id;
+		}
+		ids = Arrays.copyOf(ids, n);
+		
+		BitSet added = (BitSet) listed.clone();
+		BitSet removed = new BitSet();
+		PeerList previous = lastLists.get(src);
+		if (previous != null) {
+			if (Arrays.equals(previous.ids, ids)) {
+				ids = previous.ids; // unchanged list, share the stored copy
+			}
+			added.andNot(previous.listed);
+			removed = (BitSet) previous.listed.clone();
+			removed.andNot(listed);
+		}
+		Source source = new Source(src, ids);
+		lastLists.put(src, new PeerList(ids, listed, source));
+		
+		applyMembershipDelta(added, removed);
+		listSources.add(source);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.source = src;
+			event.peers = ids.length;
+			event.commit();
 		}
-		listSources.add(new Source(ip, port, peers));
 	}
 	
 	/**
-	 * Creates a list of current peers in the system via colon
-	 * separated ip address and port number.
-	 * @return list of peers as a string
+	 * Adds and removes many peers from currentPeers and publishes a 
+	 * single new snapshot of the membership.
+	 * @param added - ids of peers to add if they are not current peers
+	 * @param removed - ids of peers to remove if they have never been heard from directly
 	 */
-	public LinkedList<String> getCurrentPeers() {
-		LinkedList<String> cp = new LinkedList<String>();
-		synchronized(currentPeers) {
-			for (Peer p : currentPeers) {
-				String aliveness = (p.getActive()) ? "alive" : "silent";
-				cp.add(p.ip + ":" + p.port + " " + aliveness + "\n");
+	private void applyMembershipDelta(BitSet added, BitSet removed) {
+		ArrayList<Peer> joined = new ArrayList<Peer>();
+		BitSet left = new BitSet();
+		synchronized(membershipLock) {
+			for (int id = added.nextSetBit(0); id >= 0; id = added.nextSetBit(id + 1)) {
+				Peer p = new Peer(id);
+				if (currentPeers.putIfAbsent(id, p) == null) {
+					joined.add(p);
+				}
+			}
+			for (int id = removed.nextSetBit(0); id >= 0; id = removed.nextSetBit(id + 1)) {
+				Peer p = currentPeers.get(id);
+				if (p != null && !p.heard && currentPeers.remove(id, p)) {
+					left.set(id);
+				}
+			}
+			if (joined.isEmpty() && left.isEmpty()) {
+				return;
+			}
+			
+			Peer[] snapshot = new Peer[peerSnapshot.length - left.cardinality() + joined.size()];
+			int i = 0;
+			for (Peer q : peerSnapshot) {
+				if (!left.get(q.id)) snapshot[i++] = q;
+			}
+			for (Peer q : joined) {
+				snapshot[i++] = q;
 			}
-			return cp;
+			peerSnapshot = snapshot;
 		}
+		churned();
+		MyUtil.log("Added " + joined.size() + " peers and removed " + left.cardinality() + " peers from list source", 2);
 	}
 	
 	/**
@@ -180,15 +511,28 @@ public class GroupManager {
 	 * separated ip address and port number.
 	 * @return list of peers as a string
 	 */
-	public LinkedList<String> getCurrentActivePeers() {
+	public LinkedList<String> getCurrentPeers() {
 		LinkedList<String> cp = new LinkedList<String>();
-		synchronized(currentPeers) {
-			for (Peer p : currentPeers) {
-				if (p != null && p.active) 
-					cp.add(p.ip + ":" + p.port + "\n");
-			}
-			return cp;
+		for (Peer p : peerSnapshot) {
+			String aliveness = (p.getActive()) ? "alive" : "silent";
+			cp.add(p.ip + ":" + p.port + " " + aliveness + "\n");
+		}
+		return cp;
+	}
+	
+	/**
+	 * Creates a list of the ids of current peers that are active.
+	 * @return ids of active peers
+	 */
+	public int[] getActivePeerIds() {
+		Peer[] snapshot = peerSnapshot;
+		int[] ids = new int[snapshot.length];
+		int n = 0;
+		for (Peer p : snapshot) {
+			if (p.active)
+				ids[n++] = p.id;
 		}
+		return Arrays.copyOf(ids, n);
 	}
 	
 	/**
@@ -202,56 +546,94 @@ public class GroupManager {
 	 */
 	public LinkedList<String> getListSources() {
 		LinkedList<String> ls = new LinkedList<String>();
-		synchronized(listSources) {
-			for (Source s : listSources) {
-				String msg = s.srcLoc.ip + ":" + s.srcLoc.port + "\n" + s.dateTimeStr + "\n" + s.peersFromSrc.size() + "\n";
-				for (Peer p : s.peersFromSrc) {
-					msg += p.ip + ":" + p.port + "\n";
-				}
-				ls.add(msg);
+		for (Source s : listSources) {
+			StringBuilder msg = new StringBuilder();
+			msg.append(s.srcLoc.ip + ":" + s.srcLoc.port + "\n" + s.dateTimeStr + "\n" + s.peersFromSrc.length + "\n");
+			for (int id : s.peersFromSrc) {
+				msg.append(peers.key(id) + "\n");
 			}
-			return ls;
+			ls.add(msg.toString());
 		}
+		return ls;
 	}
 	
 	/**
 	 * Creates a list of sources that provided a single peer.
 	 * Each source in the list contains a colon separated source
-	 * IP address and port number, followed by a colon separated 
+	 * IP address and port number, followed by a colon separated
 	 * peer IP address and port number, followed by the sources date.
 	 * @return list of string formatted data from sources that provided a single peer
 	 */
 	public LinkedList<String> getSingleSources() {
 		LinkedList<String> ss = new LinkedList<String>();
-		synchronized(singleSources) {
-			for (Source s : singleSources) {
-				String msg = s.srcLoc.ip + ":" + s.srcLoc.port;
-				for (Peer p : s.peersFromSrc) {
-					msg += " " + p.ip +  ":" + p.port + " " + s.dateTimeStr + "\n";
-				}
-				ss.add(msg);
+		for (Source s : singleSources) {
+			String msg = s.srcLoc.ip + ":" + s.srcLoc.port;
+			for (int id : s.peersFromSrc) {
+				msg += " " + peers.key(id) + " " + s.dateTimeStr + "\n";
 			}
-			return ss;
+			ss.add(msg);
 		}
+		return ss;
 	}
 	
 	/**
-	 * Creates a list of snippets found in the system.
-	 * Each snippet contains the snippets timestamp, content, 
+	 * Creates a list of snippets found in the system, including snippets
+	 * evicted to disk.  Each snippet contains the snippets timestamp, content,
 	 * and colon separated source IP address and port number.
 	 * @return
 	 */
 	public LinkedList<String> getSnippets() {
 		LinkedList<String> sn = new LinkedList<String>();
-		synchronized(snippets) {
-			for (Snippet s : snippets) {
-				sn.add(s.timestamp + " " + s.content + " " + s.src.srcLoc.ip + ":" + s.src.srcLoc.port + "\n");
-			}
-			return sn;
-		}
+		snippets.view().forEach((ts, origin, content) -> {
+			sn.add(ts + " " + content + " " + peers.key(origin) + "\n");
+		});
+		return sn;
 	}
 	
-	String snippet;
+	/**
+	 * A view of every snippet found in the system, including snippets evicted 
+	 * to disk, that can be counted and then visited without creating a list.
+	 * @return view of the snippets stored when it was taken
+	 */
+	public SnippetStore.View getSnippetView() {
+		return snippets.view();
+	}
+	
+	/**
+	 * @param row - number of the first snippet to read, in the order snippets were stored
+	 * @return cursor that reads snippets stored from the row onwards, including evicted snippets
+	 */
+	public SnippetStore.Cursor getSnippetCursor(int row) {
+		return snippets.cursor(row);
+	}
+	
+	/**
+	 * @return number of snippets ever stored, the row the next snippet is stored at
+	 */
+	public int getSnippetRows() {
+		return snippets.size();
+	}
+	
+	/**
+	 * @return number of snippets stored in memory and on disk
+	 */
+	public long getSnippetCount() {
+		return snippets.view().count();
+	}
+	
+	/**
+	 * @return number of snippets evicted to disk
+	 */
+	public long getColdSnippetCount() {
+		return snippets.coldCount();
+	}
+	
+	/**
+	 * @return bytes of snippet content in memory
+	 */
+	public long getSnippetBytes() {
+		return snippets.memoryBytes();
+	}
 	
 	/**
 	 * TODO
@@ -259,164 +641,328 @@ public class GroupManager {
 	 * @return
 	 */
 	public String getSnippet(int timestamp) {
-		snippet = null;
-		synchronized (snippets) {
-			snippets.forEach( snip -> {
-				if (snip.timestamp == timestamp) {
-					snippet = snip.src.srcLoc.ip + ":" + snip.src.srcLoc.port + " " + snip.content;
-				}
-			});
+		String[] snippet = new String[1];
+		snippets.view().forEach((ts, origin, content) -> {
+			if (ts == timestamp) {
+				snippet[0] = peers.key(origin) + " " + content;
+			}
+		});
+		return snippet[0];
+	}
+	
+	/**
+	 * Moves snippets past the retention limits to disk, along with their
+	 * timeline entries, and forgets sources past the limits.  Sources are
+	 * forgotten oldest first, together with the index entry or last list
+	 * kept for them.  Called by one thread at a time.
+	 */
+	public void enforceRetention() {
+		snippets.evict(retention.maxSnippets, retention.maxSnippetBytes, retention.maxSnippetAge);
+		int first = snippets.first();
+		if (first != trimmedTo) {
+			for (Timeline timeline : timelines.values()) {
+				timeline.trim(first);
+			}
+			trimmedTo = first;
+		}
+		for (Source s : trimSources(listSources)) {
+			// the next list from the source is applied in full
+			lastLists.computeIfPresent(s.srcLoc.id, (id, list) -> list.source == s ? null : list);
+		}
+		for (Source s : trimSources(singleSources)) {
+			singleSourceIndex.remove(s.srcLoc.id);
 		}
-		return snippet;
+	}
+	
+	/**
+	 * @return sources removed from the queue
+	 */
+	private ArrayList<Source> trimSources(ConcurrentLinkedQueue<Source> sources) {
+		ArrayList<Source> trimmed = new ArrayList<Source>();
+		LocalDateTime oldest = retention.maxSourceAge > 0 
+				? LocalDateTime.now().minus(Duration.ofMillis(retention.maxSourceAge)) : null;
+		int excess = retention.maxSources > 0 ? sources.size() - retention.maxSources : 0;
+		Source s;
+		while ((s = sources.peek()) != null && (excess > 0 || (oldest != null && s.dateTime.isBefore(oldest)))) {
+			trimmed.add(sources.poll());
+			excess--;
+		}
+		return trimmed;
 	}
 	
 	/**
 	 * Add a source that provided a single peer to singleSources.
-	 * @param peer - peer provided from source as a string
-	 * @param ip - IP address of source as a string
-	 * @param port - port number of source as a string
+	 * @param peer - id of peer provided from source
+	 * @param source - id of source
 	 * @return true if the source peer already exists in currentPeers, false otherwise
 	 */
-	public boolean addSingleSource(String peer, String ip, String port) {
+	public boolean addSingleSource(int peer, int source) {
 		Peer p = new Peer(peer);
 		addPeer(p);
-
-		LinkedList<Peer> peers = new LinkedList<Peer>();
-		peers.add(p);
 		
-		for (Source src : singleSources) {
-			if (src.srcLoc.ip.equals(ip) && src.srcLoc.port.equals(port)) {
-				return true;
-			}
+		if (singleSourceIndex.contains(source)) {
+			return true;
 		}
 		
-		singleSources.add(new Source(ip, port, peers));
+		if (!singleSourceIndex.add(source)) {
+			return true; // another worker added the source first
+		}
+		singleSources.add(new Source(source, new int[] { peer }));
 		return false;
 	}
 	
 	/**
-	 * Adds a snippet to snippets.
-	 * @param ts - snippet's timestamp as a string
+	 * Adds a snippet to snippets and to the timeline of its origin, then
+	 * pushes it to subscribers of the feed.  Only the origin's timeline is 
+	 * locked while its position is found, so snippets from different origins
+	 * are mostly stored in parallel.
+	 * @param sTimestamp - snippet's timestamp
 	 * @param content - snippet's content as a string
-	 * @param ip - IP address of source as a string
-	 * @param port - port number of source as a string
+	 * @param origin - id of the snippet's source
 	 */
-	public void storeSnippet(String ts, String content, String ip, String port) {
-		int sTimestamp = Integer.parseInt(ts);
+	public void storeSnippet(int sTimestamp, String content, int origin) {
+		NodeEvents.StoreSnippet event = new NodeEvents.StoreSnippet();
+		event.begin();
+		
+		Timeline timeline = timelines.computeIfAbsent(origin, Timeline::new);
 		
 		// ignore any duplicate snippets from the same source
-		snippets.forEach(snip -> {
-			if (snip.src.srcLoc.ip == ip && snip.src.srcLoc.port == port && snip.timestamp == sTimestamp) {
-				return;
+		boolean stored = timeline.add(sTimestamp, content);
+		if (stored) {
+			feed.publish(sTimestamp, content, origin);
+		}
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.origin = origin;
+			event.size = content.length();
+			event.stored = stored;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * @return feed that pushes each new snippet to its subscribers
+	 */
+	public SnippetFeed getFeed() {
+		return feed;
+	}
+	
+	/**
+	 * Reads the first page of snippets received from a single origin,
+	 * including snippets evicted to disk.
+	 * @param origin - id of origin
+	 * @param pageSize - maximum number of snippets to return
+	 * @return page of snippets formatted as in getSnippets
+	 */
+	public TimelinePage getTimeline(int origin, int pageSize) {
+		return readTimeline(origin, 0, Integer.MIN_VALUE, pageSize);
+	}
+	
+	/**
+	 * Reads the page of snippets following the provided cursor.  Snippets
+	 * whose timeline entries were moved to disk come first, in the order they
+	 * arrived, then the rest in timestamp order.  Cost is proportional to the
+	 * page size, not to the number of stored snippets, though evicted
+	 * snippets are read from disk: at most MAX_COLD_SCAN rows for a page, which
+	 * may leave the page short of pageSize.
+	 * @param cursor - cursor returned with a previous page
+	 * @param pageSize - maximum number of snippets to return
+	 * @return page of snippets formatted as in getSnippets
+	 * @throws IllegalArgumentException if the cursor was not returned with a page
+	 */
+	public TimelinePage getTimeline(String cursor, int pageSize) {
+		if (cursor == null) {
+			throw new IllegalArgumentException("Invalid timeline cursor");
+		}
+		byte[] decoded;
+		try {
+			decoded = Base64.getUrlDecoder().decode(cursor);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid timeline cursor");
+		}
+		if (decoded.length != CURSOR_SIZE) {
+			throw new IllegalArgumentException("Invalid timeline cursor");
+		}
+		// decoded = <origin id><row><timestamp>
+		ByteBuffer comp = ByteBuffer.wrap(decoded);
+		int origin = comp.getInt();
+		int row = comp.getInt();
+		int afterTs = comp.getInt();
+		if (origin < 0 || origin >= peers.size() || row < 0) {
+			throw new IllegalArgumentException("Invalid timeline cursor");
+		}
+		return readTimeline(origin, row, afterTs, pageSize);
+	}
+	
+	/**
+	 * Every row below fromRow, and every row from it on with a timestamp up to
+	 * afterTs, was returned with an earlier page.
+	 */
+	private TimelinePage readTimeline(int origin, int fromRow, int afterTs, int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive");
+		}
+		TimelinePage page = new TimelinePage();
+		Timeline timeline = timelines.get(origin);
+		if (timeline == null) {
+			return page;
+		}
+		String key = peers.key(origin);
+		
+		// entries moved to coldKeys are found by reading the rows they lie in from disk
+		long cold = timeline.coldRows();
+		int coldFrom = (int) (cold >>> 32);
+		int coldTo = (int) cold;
+		int row = fromRow;
+		if (row < coldTo) {
+			SnippetStore.Cursor scan = snippets.cursor(Math.max(row, coldFrom));
+			int limit = (int) Math.min(coldTo, (long) scan.position() + MAX_COLD_SCAN);
+			while (page.snippets.size() < pageSize && scan.position() < limit) {
+				boolean read = scan.next(1, (ts, o, content) -> {
+					if (o == origin && ts > afterTs) {
+						page.snippets.add(ts + " " + content + " " + key + "\n");
+					}
+				}) > 0;
+				if (!read) {
+					break;
+				}
 			}
-		});
+			row = Math.max(row, scan.position());
+			scan.close();
+			if (row < coldTo || page.snippets.size() == pageSize) {
+				page.nextCursor = cursor(origin, row, afterTs);
+				return page;
+			}
+		}
+		
+		boolean[] more = new boolean[1];
+		long[] entries = timeline.read(afterTs, row, pageSize - page.snippets.size(), more);
+		if (entries == null) {
+			// entries were moved to coldKeys meanwhile, the next page reads their rows from disk
+			page.nextCursor = cursor(origin, row, afterTs);
+			return page;
+		}
+		SnippetStore.View view = snippets.view();
+		SnippetStore.Cursor evicted = null; // reads rows evicted but still in the timeline, opened for the first one
+		for (long e : entries) {
+			int entryRow = (int) e;
+			if (view.inMemory(entryRow)) {
+				page.snippets.add(view.timestamp(entryRow) + " " + view.content(entryRow) + " " + key + "\n");
+				continue;
+			}
+			if (evicted == null) {
+				evicted = snippets.cursor(entryRow);
+			}
+			int timestamp = (int) (e >> 32);
+			evicted.seek(entryRow);
+			evicted.next(1, (ts, o, content) -> {
+				// a snippet lost on eviction leaves the cursor on a different one
+				if (ts == timestamp && o == origin) {
+					page.snippets.add(ts + " " + content + " " + key + "\n");
+				}
+			});
+		}
+		if (evicted != null) {
+			evicted.close();
+		}
 		
-		Source src = new Source(ip, port);
-		snippets.add(new Snippet(sTimestamp, content, src));
+		if (more[0] && entries.length > 0) {
+			page.nextCursor = cursor(origin, row, (int) (entries[entries.length - 1] >> 32));
+		}
+		return page;
 	}
 	
-	private static Random r = new Random(); // random number generator
+	/**
+	 * @return cursor for the page following the row and timestamp of the origin
+	 */
+	private static String cursor(int origin, int row, int afterTs) {
+		byte[] cursor = ByteBuffer.allocate(CURSOR_SIZE).putInt(origin).putInt(row).putInt(afterTs).array();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor);
+	}
 	
 	/**
-	 * Use a random number to select the index in 
+	 * Use a random number to select the index in
 	 * which to return a peer from currentPeers.
 	 * Only return active peers.
-	 * @return a peer's colon separated IP address and port number from currentPeers as a string
+	 * @return a peer's colon separated IP address and port number from currentPeers as a string,
+	 * 		   or null if there are no active peers
 	 */
 	public String getRandomPeer() {
-		synchronized(currentPeers) {
-			if (!currentPeers.isEmpty()) {
-				Peer peer;
-				do {
-					int index = r.nextInt(currentPeers.size());
-					peer = currentPeers.get(index);
-				} while (peer == null || !peer.active);
+		Peer[] snapshot = peerSnapshot;
+		if (snapshot.length == 0) {
+			return null;
+		}
+		
+		// scan from a random index so every active peer is equally likely to be the first found
+		int start = ThreadLocalRandom.current().nextInt(snapshot.length);
+		for (int i = 0; i < snapshot.length; i++) {
+			Peer peer = snapshot[(start + i) % snapshot.length];
+			if (peer.active) {
 				return peer.ip + ":" + peer.port;
-			} else {
-				return null;
 			}
 		}
+		return null;
 	}
 	
 	/**
-	 * Compares the date in which a peer message was last received from all peers and sets the 
+	 * Compares the date in which a peer message was last received from all peers and sets the
 	 * status for all peers to active if less than 3 minutes has passed or inactive otherwise.
 	 * @param elapsedTime - interval in milliseconds in which to remove peers as a long
 	 */
 	public void refreshPeers() {
-		synchronized(currentPeers) {
-			if (!currentPeers.isEmpty()) {
-				LocalDateTime now = LocalDateTime.now();
-				for (Peer p : currentPeers) {
-					if (p == null) continue;
-					if (Duration.between(p.lastHeardFrom, now).getSeconds() >= (3 * 60 * 1000)) {
-						p.setActive(false);
-					} else {
-						p.setActive(true);
-					}
-				}			
+		NodeEvents.RefreshPeers event = new NodeEvents.RefreshPeers();
+		event.begin();
+		
+		LocalDateTime now = LocalDateTime.now();
+		Peer[] snapshot = peerSnapshot;
+		for (Peer p : snapshot) {
+			if (Duration.between(p.lastHeardFrom, now).getSeconds() >= (3 * 60)) {
+				p.setActive(false);
+			} else {
+				p.setActive(true);
 			}
 		}
-	}
-	
-	/**
-	 * Removes a peer from currentPeers
-	 * @param p - peer to be removed
-	 */
-	public void removePeer(Peer p) {
-		MyUtil.log("Removing peer " + p);
-		synchronized(currentPeers) {
-			for (Peer q : currentPeers) {
-				//MyUtil.log("Does peer " + q.ip + ":" + q.port + " equal " + p.ip + ":" + p.port, 1);
-				if (q.ip.equals(p.ip) && q.port.equals(p.port)) {
-					currentPeers.removeElement(q);
-					break;
-				}
-			}
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.peers = snapshot.length;
+			event.commit();
 		}
 	}
 	
 	/**
 	 * Removes a peer from currentPeers
-	 * @param ip - IP address of peer to be removed as a string
-	 * @param port - port number of peer to be removed as a string
-	 */
-	public void removePeer(String ip, String port) {
-		Peer p = new Peer(ip, port);
-		removePeer(p);
-	}
-	
-	/**
-	 * Searches currentPeers for the peer provided.
-	 * @param p - peer to search for
-	 * @return peer if found in currentPeers; null otherwise
+	 * @param id - id of peer to be removed
 	 */
-	private Peer findCurrentPeer(Peer p) {
-		synchronized(currentPeers) {
-			if (!currentPeers.isEmpty()) {
-				for (Peer q : currentPeers) {
-					if (q == null) continue;
-					//MyUtil.log("Peer in currentPeers: " + q.ip + ":" + q.port, 2);
-					//MyUtil.log("Peer to compare: " + p.ip + ":" + p.port, 2);
-					//MyUtil.log("Does peer " + q.ip + ":" + q.port + " equal " + p.ip + ":" + p.port, 1);
-					if (q.ip.equals(p.ip) && q.port.equals(p.port)) {
-						return q;
-					}
-				}
+	public void removePeer(int id) {
+		Peer removed;
+		synchronized(membershipLock) {
+			removed = currentPeers.remove(id);
+			if (removed == null) {
+				return;
+			}
+			Peer[] snapshot = new Peer[peerSnapshot.length - 1];
+			int i = 0;
+			for (Peer q : peerSnapshot) {
+				if (q != removed) snapshot[i++] = q;
 			}
+			peerSnapshot = snapshot;
 		}
-		return null;
+		MyUtil.log("Removing peer " + removed);
+		churned();
 	}
 	
 	/**
 	 * Updates the date heard from a peer if the peer exists in currentPeers
-	 * @param p - peer to update
+	 * @param id - id of peer to update
 	 * @return true if provided peer exists in list of current peers, false otherwise
 	 */
-	public boolean updatePeer (Peer p) {
-		MyUtil.log("Updating peer " + p.toString());
-		Peer pExists = findCurrentPeer(p);
+	public boolean updatePeer (int id) {
+		Peer pExists = currentPeers.get(id);
 		if (pExists != null) {
+			MyUtil.log("Updating peer " + pExists.toString());
+			pExists.heard = true;
 			if (pExists.active) {
 				pExists.heardFrom();
 			} else {
@@ -429,38 +975,15 @@ public class GroupManager {
 		}
 	}
 	
-	/**
-	 * Updates the date heard from a peer if the peer exists in currentPeers
-	 * @param ip - IP address of peer to update as a string
-	 * @param port - port number of peer to update as a string
-	 * @return true if provided peer exists in list of current peers, false otherwise
-	 */
-	public boolean updatePeer (String ip, String port) {
-		Peer p = new Peer(ip, port);
-		return updatePeer(p);
-	}
-	
-	/**
-	 * Updates the date heard from a peer if the peer exists in currentPeers
-	 * @param peer - peer to update as a <ip>":"<port> string
-	 * @return true if provided peer exists in list of current peers, false otherwise
-	 */
-	public boolean updatePeer (String peer) {
-		String[] comp = peer.split(":");
-		Peer p = new Peer(comp[0], comp[1]);
-		return updatePeer(p);
-	}
-
 	/**
 	 * Checks the status of the provided peer and sets it to active if it were previously inactive.
-	 * @param ip
-	 * @param port
+	 * @param id
 	 * @return true if the peer was previously active, false otherwise
 	 */
-	public boolean peerActive(String ip, String port) {
-		Peer peer = new Peer(ip, port);
+	public boolean peerActive(int id) {
+		Peer peer = currentPeers.get(id);
 		
-		if (findCurrentPeer(peer) != null) {
+		if (peer != null) {
 			if (peer.active) {
 				return true;
 			}
@@ -468,19 +991,29 @@ public class GroupManager {
 			peer.setActive(true);
 			return false;
 		} else {
-			addPeer(peer);
+			addPeer(new Peer(id));
 			return true;
 		}
 	}
 	
+	/**
+	 * @param id - id of peer
+	 * @return true if the peer is one of the current peers and is active
+	 */
+	public boolean isPeerActive(int id) {
+		Peer peer = currentPeers.get(id);
+		return peer != null && peer.active;
+	}
+	
 	/**
 	 * TODO
-	 * @param peer
+	 * @param id
 	 */
-	public void setPeerInactive(String peer) {
-		Peer p = new Peer(peer);
-		p = findCurrentPeer(p);
+	public void setPeerInactive(int id) {
+		Peer p = currentPeers.get(id);
 		
-		p.setActive(false);
+		if (p != null) {
+			p.setActive(false);
+		}
 	}
 }
@@ -0,0 +1,87 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded hand-off of received work, such as datagrams, from the socket thread(s) 
+ * to the thread that handles them.  Neither side takes a lock: producers never 
+ * block and drop the item when the queue is full, and the single consumer 
+ * parks briefly when the queue is empty.
+ * @author joshuaplosz
+ *
+ */
+public class InboundQueue<T> {
+	
+	/**
+	 * A datagram as read from the socket, held in a buffer borrowed from a pool.
+	 */
+	public static class Inbound {
+		public byte[] buff;
+		public int length;
+		public int peer; // id of the sending peer
+		public long received = System.nanoTime();
+		
+		Inbound(byte[] buff, int length, int peer) {
+			this.buff = buff;
+			this.length = length;
+			this.peer = peer;
+		}
+	}
+	
+	private final int capacity;
+	private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+	private final AtomicInteger size = new AtomicInteger(0);
+	private volatile Thread consumer;
+	
+	InboundQueue(int capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Adds an item to the queue without blocking.
+	 * @param in - received item
+	 * @return false if the queue is full and the item was not added
+	 */
+	public boolean offer(T in) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		queue.offer(in);
+		
+		Thread waiting = consumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest item, waiting up to the provided time for one to arrive.
+	 * Must only be called by a single consumer thread.
+	 * @param timeout - maximum time to wait
+	 * @param unit - unit of timeout
+	 * @return oldest item, or null if none arrived in time
+	 */
+	public T poll(long timeout, TimeUnit unit) {
+		T in = queue.poll();
+		if (in == null) {
+			consumer = Thread.currentThread();
+			in = queue.poll(); // recheck after publishing ourselves so an offer cannot be missed
+			if (in == null) {
+				LockSupport.parkNanos(this, unit.toNanos(timeout));
+				in = queue.poll();
+			}
+			consumer = null;
+		}
+		if (in != null) {
+			size.decrementAndGet();
+		}
+		return in;
+	}
+	
+	public int size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,414 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress tool that impersonates many peers from loopback sockets and sends a
+ * node a weighted mix of peer, snip, ctch and ack messages at a target rate.
+ * Acks of snip messages are matched to measure ack latency and loss.
+ *
+ * By default the tool also plays the registry: start it first, then start the
+ * node with -ip 127.0.0.1 -port <registry port>.  The tool learns the node's
+ * location, sends it the impersonated peers and polls its metrics every second
+ * to follow thread and heap growth.  With -node the tool sends to a node that
+ * is already running and no metrics are collected.
+ *
+ * java -cp bin LoadGenerator [-registry <port> | -node <ip:port>] [-peers <n>]
+ * 		[-rate <datagrams/s>] [-duration <seconds>] [-mix snip=8,peer=1,ctch=1,ack=0]
+ * 		[-size <content bytes>]
+ * @author joshuaplosz
+ *
+ */
+public class LoadGenerator {
+
+	private static String defaultRegistryPort	= "55921";
+	private static String defaultPeers			= "100";
+	private static String defaultRate			= "1000"; // datagrams per second
+	private static String defaultDuration		= "30"; // seconds
+	private static String defaultMix			= "snip=8,peer=1,ctch=1,ack=0";
+	private static String defaultSize			= "64"; // bytes of snippet content
+	
+	private static final int RING = 1 << 16; // snips per peer awaiting an ack before their send time is overwritten
+	private static final int ORIGINS = 256; // made up origins used in ctch messages
+	private static final int MAX_SAMPLES = 10_000_000; // ack latencies kept for percentiles
+	private static final long DRAIN = 2000; // milliseconds to wait for acks after the last send
+	
+	private enum Kind { PEER, SNIP, CTCH, ACK }
+	
+	private final InetSocketAddress node;
+	private final DatagramChannel[] channels;
+	private final String[] keys; // "ip:port" of each impersonated peer
+	private final Kind[] mix;    // one entry per unit of weight
+	private final String content;
+	private final Random random = new Random();
+	
+	// used only by the sending thread
+	private final int[] nextTimestamp;
+	private int nextCatchUp = 0;
+	private int snip = 0; // timestamp of the message from nextMessage if it is a snip, 0 otherwise
+	
+	// send time in nanoseconds of each snip awaiting an ack, by peer and timestamp
+	private final long[][] sendTimes;
+	
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong socketDrops = new AtomicLong(0); // not sent as the socket buffer was full
+	private final AtomicLong snipsSent = new AtomicLong(0);
+	private final AtomicLong acked = new AtomicLong(0);
+	private final AtomicLong received = new AtomicLong(0);
+	
+	// ack latencies in microseconds, used only by the receiving thread
+	private int[] latencies = new int[1024];
+	private int samples = 0;
+	
+	private volatile boolean receiving = true;
+	
+	/**
+	 * @param node - UDP address of the node under test
+	 * @param peers - number of peers to impersonate, each with its own socket
+	 * @param mix - weighted message kinds, e.g. "snip=8,peer=1"
+	 * @param size - bytes of content in snip and ctch messages
+	 */
+	LoadGenerator(InetSocketAddress node, int peers, String mix, int size) throws IOException {
+		this.node = node;
+		this.mix = parseMix(mix);
+		
+		char[] filler = new char[size];
+		for (int i = 0; i < size; i++) {
+			filler[i] = (i % 5 == 4) ? ' ' : 'x';
+		}
+		this.content = new String(filler).trim();
+		
+		channels = new DatagramChannel[peers];
+		keys = new String[peers];
+		nextTimestamp = new int[peers];
+		sendTimes = new long[peers][];
+		for (int i = 0; i < peers; i++) {
+			channels[i] = DatagramChannel.open();
+			channels[i].bind(new InetSocketAddress("127.0.0.1", 0));
+			channels[i].configureBlocking(false);
+			keys[i] = "127.0.0.1:" + ((InetSocketAddress) channels[i].getLocalAddress()).getPort();
+			sendTimes[i] = new long[RING];
+		}
+	}
+	
+	private static Kind[] parseMix(String mix) {
+		Kind[] weighted = new Kind[0];
+		for (String part : mix.split(",")) {
+			String[] kv = part.trim().split("=");
+			Kind kind = Kind.valueOf(kv[0].trim().toUpperCase());
+			int weight = Integer.parseInt(kv[1].trim());
+			int from = weighted.length;
+			weighted = Arrays.copyOf(weighted, from + weight);
+			Arrays.fill(weighted, from, weighted.length, kind);
+		}
+		if (weighted.length == 0) {
+			throw new IllegalArgumentException("Message mix has no weight: " + mix);
+		}
+		return weighted;
+	}
+	
+	/**
+	 * Sends messages at the target rate until the duration has passed.
+	 * @param rate - datagrams per second
+	 * @param duration - milliseconds to send for
+	 */
+	void send(int rate, long duration) {
+		long interval = 1_000_000_000L / rate;
+		long start = System.nanoTime();
+		long end = start + duration * 1_000_000L;
+		long next = start;
+		int peer = 0;
+		
+		while (next < end) {
+			try {
+				byte[] msg = nextMessage(peer);
+				long sentAt = System.nanoTime();
+				if (channels[peer].send(ByteBuffer.wrap(msg), node) == 0) {
+					// a snip that was never sent gives its timestamp to the next one
+					socketDrops.incrementAndGet();
+					if (snip != 0) {
+						nextTimestamp[peer]--;
+					}
+				} else {
+					sent.incrementAndGet();
+					if (snip != 0) {
+						sendTimes[peer][snip & (RING - 1)] = sentAt;
+						snipsSent.incrementAndGet();
+					}
+				}
+			} catch (IOException e) {
+				MyUtil.log("Send failed: " + e.getMessage(), 2);
+			}
+			peer = (peer + 1) % channels.length;
+			
+			// falling behind is made up by sending the missed datagrams at once
+			next += interval;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the next message from a peer.  Snips are only recorded as sent
+	 * by the caller, once the socket has taken them.
+	 */
+	private byte[] nextMessage(int peer) {
+		String msg;
+		snip = 0;
+		switch (mix[random.nextInt(mix.length)]) {
+		case PEER:
+			msg = "peer" + keys[random.nextInt(keys.length)];
+			break;
+		case CTCH:
+			// made up origins keep catch-up snippets apart from the peers' own timelines
+			msg = "ctch10.0." + (nextCatchUp % ORIGINS) + ".1:5000 " + (++nextCatchUp) + " " + content;
+			break;
+		case ACK:
+			msg = "ack " + random.nextInt(Integer.MAX_VALUE);
+			break;
+		default:
+			snip = ++nextTimestamp[peer];
+			msg = "snip " + snip + " " + content;
+		}
+		return msg.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Receives from every impersonated peer's socket on one thread.  Acks are
+	 * matched to the snip they acknowledge, and snips from the node are acked
+	 * so the node keeps the peers active.
+	 */
+	void receive() {
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		try (Selector selector = Selector.open()) {
+			for (int i = 0; i < channels.length; i++) {
+				channels[i].register(selector, SelectionKey.OP_READ, i);
+			}
+			while (receiving) {
+				selector.select(100);
+				for (SelectionKey key : selector.selectedKeys()) {
+					int peer = (Integer) key.attachment();
+					buf.clear();
+					SocketAddress from;
+					while ((from = channels[peer].receive(buf)) != null) {
+						received.incrementAndGet();
+						handle(peer, new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8), from);
+						buf.clear();
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException e) {
+			MyUtil.log("Receive failed: " + e.getMessage(), 2);
+		}
+	}
+	
+	private void handle(int peer, String msg, SocketAddress from) throws IOException {
+		if (msg.startsWith("ack")) {
+			int ts;
+			try {
+				ts = Integer.parseInt(msg.substring(3).trim());
+			} catch (NumberFormatException e) {
+				return;
+			}
+			int slot = ts & (RING - 1);
+			long sentAt = sendTimes[peer][slot];
+			if (sentAt != 0) {
+				sendTimes[peer][slot] = 0;
+				acked.incrementAndGet();
+				record((System.nanoTime() - sentAt) / 1000);
+			}
+		} else if (msg.startsWith("snip")) {
+			String[] line = msg.substring(4).trim().split(" ", 2);
+			channels[peer].send(ByteBuffer.wrap(("ack " + line[0]).getBytes(StandardCharsets.UTF_8)), from);
+		}
+	}
+	
+	private void record(long micros) {
+		if (samples == MAX_SAMPLES) {
+			return;
+		}
+		if (samples == latencies.length) {
+			latencies = Arrays.copyOf(latencies, Math.min(samples * 2, MAX_SAMPLES));
+		}
+		latencies[samples++] = (int) Math.min(micros, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param sorted - sorted latencies
+	 * @param p - percentile between 0 and 100
+	 * @return latency in milliseconds at the percentile
+	 */
+	private static double percentile(int[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1000.0;
+	}
+	
+	/**
+	 * Plays the registry for a single node: learns the node's location, sends
+	 * it the impersonated peers and reads its metrics on request.
+	 * @author joshuaplosz
+	 *
+	 */
+	private static class RegistryStub {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final OutputStream out;
+		
+		RegistryStub(ServerSocket server) throws IOException {
+			socket = server.accept();
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = socket.getOutputStream();
+		}
+		
+		InetSocketAddress getLocation() throws IOException {
+			String location = request("get location\n");
+			String[] ipPort = location.trim().split(":");
+			return new InetSocketAddress(ipPort[0], Integer.parseInt(ipPort[1]));
+		}
+		
+		void sendPeers(String nodeKey, String[] keys) throws IOException {
+			StringBuilder msg = new StringBuilder("receive peers\n");
+			msg.append(keys.length + 1).append("\n").append(nodeKey).append("\n");
+			for (String key : keys) {
+				msg.append(key).append("\n");
+			}
+			out.write(msg.toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+		
+		/**
+		 * @return the node's metrics by name
+		 */
+		HashMap<String, String> getMetrics() throws IOException {
+			HashMap<String, String> metrics = new HashMap<String, String>();
+			String count = request("get metrics\n");
+			for (int i = Integer.parseInt(count.trim()); i > 0; i--) {
+				String[] metric = in.readLine().split(" ", 2);
+				metrics.put(metric[0], metric.length > 1 ? metric[1] : "");
+			}
+			return metrics;
+		}
+		
+		private String request(String msg) throws IOException {
+			out.write(msg.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			String reply = in.readLine();
+			if (reply == null) {
+				throw new IOException("Node closed the registry connection");
+			}
+			return reply;
+		}
+		
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		MyUtil.disableDebugMsgs();
+		
+		HashMap<String, String> params = MyUtil.parseCommandLine(args);
+		int peers = Integer.parseInt(params.getOrDefault("-peers", defaultPeers));
+		int rate = Integer.parseInt(params.getOrDefault("-rate", defaultRate));
+		long duration = Long.parseLong(params.getOrDefault("-duration", defaultDuration)) * 1000;
+		String mix = params.getOrDefault("-mix", defaultMix);
+		int size = Integer.parseInt(params.getOrDefault("-size", defaultSize));
+		
+		RegistryStub registry = null;
+		InetSocketAddress node;
+		if (params.containsKey("-node")) {
+			String[] ipPort = params.get("-node").split(":");
+			node = new InetSocketAddress(ipPort[0], Integer.parseInt(ipPort[1]));
+		} else {
+			int port = Integer.parseInt(params.getOrDefault("-registry", defaultRegistryPort));
+			try (ServerSocket server = new ServerSocket(port)) {
+				System.out.println("Waiting for a node to connect to registry port " + port);
+				registry = new RegistryStub(server);
+			}
+			node = registry.getLocation();
+		}
+		
+		LoadGenerator load = new LoadGenerator(node, peers, mix, size);
+		if (registry != null) {
+			registry.sendPeers(node.getHostString() + ":" + node.getPort(), load.keys);
+		}
+		System.out.println("Sending " + rate + " datagrams/s from " + peers + " peers to " + node + " for "
+				+ (duration / 1000) + "s, mix " + mix);
+		
+		Thread receiver = new Thread(load::receive, "Load Receiver");
+		receiver.start();
+		Thread sender = new Thread(() -> load.send(rate, duration), "Load Sender");
+		sender.start();
+		
+		// report once a second while sending and draining acks
+		long start = System.currentTimeMillis();
+		long firstThreads = -1, lastThreads = -1;
+		long firstHeap = -1, lastHeap = -1;
+		while (sender.isAlive() || System.currentTimeMillis() - start < duration + DRAIN) {
+			Thread.sleep(1000);
+			String nodeStats = "";
+			if (registry != null) {
+				try {
+					HashMap<String, String> m = registry.getMetrics();
+					lastThreads = Long.parseLong(m.getOrDefault("jvm.threads", "-1"));
+					lastHeap = Long.parseLong(m.getOrDefault("jvm.heap.used", "-1"));
+					if (firstThreads < 0) {
+						firstThreads = lastThreads;
+						firstHeap = lastHeap;
+					}
+					nodeStats = String.format(" | node threads=%d heap=%.1fMB limited=%s/%s stored=%s",
+							lastThreads, lastHeap / 1048576.0,
+							m.getOrDefault("udp.limited.peer", "-"), m.getOrDefault("udp.limited.global", "-"),
+							m.getOrDefault("snippets.stored", "-"));
+				} catch (IOException | RuntimeException e) {
+					nodeStats = " | node metrics unavailable: " + e.getMessage();
+				}
+			}
+			System.out.println(String.format("%4ds sent=%d dropped=%d snips=%d acked=%d received=%d%s",
+					(System.currentTimeMillis() - start) / 1000, load.sent.get(), load.socketDrops.get(), load.snipsSent.get(),
+					load.acked.get(), load.received.get(), nodeStats));
+		}
+		
+		load.receiving = false;
+		receiver.join();
+		if (registry != null) {
+			registry.close();
+		}
+		
+		int[] sorted = Arrays.copyOf(load.latencies, load.samples);
+		Arrays.sort(sorted);
+		long snips = load.snipsSent.get();
+		double loss = (snips == 0) ? 0 : 100.0 * (snips - load.acked.get()) / snips;
+		System.out.println(String.format("snips sent=%d acked=%d loss=%.2f%%, %d datagrams dropped by full socket buffers",
+				snips, load.acked.get(), loss, load.socketDrops.get()));
+		System.out.println(String.format("ack latency ms p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+				percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+				percentile(sorted, 99.9), percentile(sorted, 100)));
+		if (firstThreads >= 0) {
+			System.out.println(String.format("node threads %d -> %d, heap %.1fMB -> %.1fMB",
+					firstThreads, lastThreads, firstHeap / 1048576.0, lastHeap / 1048576.0));
+		}
+		System.exit(0);
+	}
+}
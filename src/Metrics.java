@@ -0,0 +1,56 @@
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters and gauges describing the health of this process.
+ * Counters are created on first use and should be kept by the caller
+ * so the hot path only pays for an atomic increment.  Gauges are sampled
+ * only when a report is requested.
+ * @author joshuaplosz
+ *
+ */
+public class Metrics {
+	
+	private ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param name - name of the counter
+	 * @return the counter registered under the provided name, created if it does not exist
+	 */
+	public AtomicLong counter(String name) {
+		return counters.computeIfAbsent(name, n -> new AtomicLong(0));
+	}
+	
+	/**
+	 * Registers a value that is sampled each time a report is created.
+	 * @param name - name of the gauge
+	 * @param value - supplier of the gauge's current value
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+	
+	/**
+	 * Creates a list of every counter and gauge sorted by name.
+	 * Each entry is formatted as <name>" "<value>"\n".
+	 * @return list of metrics as strings
+	 */
+	public LinkedList<String> report() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> c : counters.entrySet()) {
+			values.put(c.getKey(), c.getValue().get());
+		}
+		for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+			values.put(g.getKey(), g.getValue().getAsLong());
+		}
+		
+		LinkedList<String> report = new LinkedList<String>();
+		values.forEach((name, value) -> report.add(name + " " + value + "\n"));
+		return report;
+	}
+}
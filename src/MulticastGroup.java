@@ -0,0 +1,80 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Enumeration;
+
+/**
+ * An IP multicast group that gossip and new snippets are sent to once,
+ * instead of to each peer, and the network interface it is joined on.
+ * Acks, re-sent snippets and catch-up are still sent to each peer.
+ * @author joshuaplosz
+ *
+ */
+public class MulticastGroup {
+
+	public final InetSocketAddress group;			// group address and port
+	public final NetworkInterface networkInterface;	// interface the group is joined and sent on
+	
+	MulticastGroup(InetSocketAddress group, NetworkInterface networkInterface) {
+		this.group = group;
+		this.networkInterface = networkInterface;
+	}
+	
+	/**
+	 * @param spec - group as <ip>":"<port>, e.g. 239.255.42.99:55930
+	 * @param interfaceName - name of the interface to join the group on, e.g. "eth0"
+	 * 		or "lo", null for the first interface that is up and supports multicast
+	 * @return the group
+	 * @throws IllegalArgumentException if the group or interface is not usable
+	 */
+	public static MulticastGroup parse(String spec, String interfaceName) {
+		int colon = spec.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Multicast group must be <ip>:<port>: " + spec);
+		}
+		try {
+			InetAddress address = InetAddress.getByName(spec.substring(0, colon));
+			int port = Integer.parseInt(spec.substring(colon + 1));
+			if (!address.isMulticastAddress()) {
+				throw new IllegalArgumentException("Not a multicast address: " + address.getHostAddress());
+			}
+			NetworkInterface ni = (interfaceName != null)
+					? NetworkInterface.getByName(interfaceName)
+					: defaultInterface();
+			if (ni == null) {
+				throw new IllegalArgumentException("No network interface to join " + spec + " on");
+			}
+			return new MulticastGroup(new InetSocketAddress(address, port), ni);
+		} catch (UnknownHostException | SocketException e) {
+			throw new IllegalArgumentException("Unusable multicast group " + spec, e);
+		}
+	}
+	
+	/**
+	 * @return first interface that is up and supports multicast, preferring
+	 * 		one that is not loopback, or null if there is none
+	 */
+	private static NetworkInterface defaultInterface() throws SocketException {
+		NetworkInterface loopback = null;
+		Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+		while (all != null && all.hasMoreElements()) {
+			NetworkInterface ni = all.nextElement();
+			if (!ni.isUp()) {
+				continue;
+			}
+			if (ni.isLoopback()) {
+				loopback = ni;
+			} else if (ni.supportsMulticast()) {
+				return ni;
+			}
+		}
+		return loopback;
+	}
+	
+	@Override
+	public String toString() {
+		return group.getAddress().getHostAddress() + ":" + group.getPort() + " on " + networkInterface.getName();
+	}
+}
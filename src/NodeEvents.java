@@ -0,0 +1,135 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events on the hot paths of a node.  Each event is
+ * enabled and given a duration threshold by the recording's settings (see
+ * twitterish.jfc).  When no recording is running, or the event is disabled,
+ * creating, timing and committing an event does close to no work.
+ * @author joshuaplosz
+ *
+ */
+public class NodeEvents {
+
+	private NodeEvents() {
+	}
+	
+	@Name("twitterish.Parse")
+	@Label("Parse Message")
+	@Category({"Twitter-ish", "Messages"})
+	@Description("Handling of a single peer or registry message")
+	public static class Parse extends Event {
+		@Label("Type")
+		@Description("First word of the message, such as snip, peer or get")
+		String type;
+		
+		@Label("Peer")
+		@Description("Interned id of the sender")
+		int peer;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+	
+	@Name("twitterish.DatagramReceive")
+	@Label("Datagram Receive")
+	@Category({"Twitter-ish", "UDP"})
+	@Description("Decoding and handling of a received datagram on a worker")
+	public static class DatagramReceive extends Event {
+		@Label("Peer")
+		int peer;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+		
+		@Label("Queue Wait")
+		@Description("Time from the socket read to a worker picking up the datagram")
+		@Timespan(Timespan.NANOSECONDS)
+		long queueWait;
+	}
+	
+	@Name("twitterish.DatagramSend")
+	@Label("Datagram Send")
+	@Category({"Twitter-ish", "UDP"})
+	@Description("Socket write of an outgoing datagram")
+	public static class DatagramSend extends Event {
+		@Label("Peer")
+		int peer;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+		
+		@Label("Priority")
+		String priority;
+		
+		@Label("Queue Wait")
+		@Description("Time the datagram waited in the outbound scheduler")
+		@Timespan(Timespan.NANOSECONDS)
+		long queueWait;
+	}
+	
+	@Name("twitterish.StoreSnippet")
+	@Label("Store Snippet")
+	@Category({"Twitter-ish", "Group"})
+	public static class StoreSnippet extends Event {
+		@Label("Origin")
+		int origin;
+		
+		@Label("Size")
+		@DataAmount
+		int size;
+		
+		@Label("Stored")
+		@Description("False if the snippet was a duplicate")
+		boolean stored;
+	}
+	
+	@Name("twitterish.AddListSource")
+	@Label("Add List Source")
+	@Category({"Twitter-ish", "Group"})
+	public static class AddListSource extends Event {
+		@Label("Source")
+		int source;
+		
+		@Label("Peers")
+		@Description("Number of peers in the list")
+		int peers;
+	}
+	
+	@Name("twitterish.RefreshPeers")
+	@Label("Refresh Peers")
+	@Category({"Twitter-ish", "Group"})
+	public static class RefreshPeers extends Event {
+		@Label("Peers")
+		@Description("Number of current peers after the refresh")
+		int peers;
+	}
+	
+	@Name("twitterish.CatchUp")
+	@Label("Catch-up Session")
+	@Category({"Twitter-ish", "Group"})
+	@Description("Session sending past snippets to a new or re-activated peer, from its start until it ends or is paused")
+	public static class CatchUp extends Event {
+		@Label("Peer")
+		int peer;
+		
+		@Label("Snippets")
+		int snippets;
+	}
+	
+	@Name("twitterish.Report")
+	@Label("Registry Report")
+	@Category({"Twitter-ish", "Registry"})
+	public static class Report extends Event {
+		@Label("Snippets")
+		long snippets;
+	}
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads and buffers shared by every node running in this process.
+ * A node only owns its state (peers, snippets, sockets); receiving and
+ * sending on its sockets, handling its messages and running its timers
+ * is done by the host:
+ * 		event loops that serve the UDP sockets and registry connections of every node
+ * 		a scheduler that times every node's gossip, retention and delivery retries
+ * 		a pool of workers that handle messages, ordered per node and peer
+ * 		a maintenance pool for slow housekeeping, such as evicting snippets to
+ * 		disk, so one node's disk writes do not delay every node's timers
+ * A process running a single node uses a host of its own, so hundreds of
+ * nodes cost the same threads as one.  The host shuts down, letting the
+ * process exit, once every node has stopped.
+ * @author joshuaplosz
+ *
+ */
+public class NodeHost {
+
+	private static final int WORKER_QUEUE_CAPACITY = 4096; // tasks queued per worker
+	private static final int RECEIVE_POOL_SIZE = 4096; // idle receive buffers kept for reuse
+	
+	private final EventLoop[] loops;
+	private final ScheduledExecutorService scheduler;
+	private final StripedExecutor workers;
+	private final ExecutorService maintenance;
+	// buffers that datagrams are received into, shared by every node
+	private final BufferPool receivePool = new BufferPool(UDPServer.RECEIVE_BUFFER_SIZE, RECEIVE_POOL_SIZE);
+	private final AtomicInteger nodes = new AtomicInteger(0);
+	private final AtomicInteger running = new AtomicInteger(0); // nodes started and not yet stopped
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+	
+	/**
+	 * Starts the shared threads.
+	 * @param workerThreads - number of threads handling messages
+	 * @param eventLoops - number of threads serving sockets
+	 */
+	NodeHost(int workerThreads, int eventLoops) {
+		loops = new EventLoop[eventLoops];
+		try {
+			for (int i = 0; i < eventLoops; i++) {
+				loops[i] = new EventLoop("Event Loop " + i);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to open selector", e);
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		workers = new StripedExecutor("Peer Worker", workerThreads, WORKER_QUEUE_CAPACITY);
+		AtomicInteger maintenanceThreads = new AtomicInteger(0);
+		maintenance = Executors.newFixedThreadPool(Math.max(1, workerThreads / 4), r -> {
+			Thread t = new Thread(r, "Maintenance " + maintenanceThreads.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	/**
+	 * Starts a node on this host.  Returns once the node's UDP socket is bound,
+	 * the registry is connected to in the background.
+	 * @param registryIP - IP address of registry
+	 * @param registryPort - port number of registry
+	 * @param teamName - name reported to the registry
+	 * @param registryLocation - "remote" if the registry is reached over the internet, "local" otherwise
+	 * @param receiveShards - number of sockets receiving on the node's UDP port
+	 * @param visibleIp - address reported to the registry in place of the discovered one, or null
+	 * @param offHeapSnippets - true to keep snippet content outside the Java heap
+	 * @param retention - limits on the snippets and sources kept in memory
+	 * @param peerRate - datagrams per second the node accepts from a single peer, 0 for no limit
+	 * @param globalRate - datagrams per second the node accepts from all peers, 0 for no limit
+	 * @param bulkRate - bytes per second catch-up traffic may send, 0 for no cap
+	 * @param multicast - group to send gossip and new snippets to, null for unicast only
+	 * @return the running node
+	 */
+	public CommManager startNode(String registryIP, String registryPort, String teamName, String registryLocation,
+			int receiveShards, String visibleIp, boolean offHeapSnippets, Retention retention, int peerRate, int globalRate,
+			long bulkRate, MulticastGroup multicast) {
+		// each node has its own limiter, as peer ids are only unique within a node;
+		// bursts of half a second of traffic are accepted
+		RateLimiter limiter = new RateLimiter(peerRate, peerRate / 2, globalRate, globalRate / 2);
+		return new CommManager(this, registryIP, registryPort, teamName, registryLocation, receiveShards,
+				visibleIp, offHeapSnippets, retention, limiter, bulkRate, multicast);
+	}
+	
+	/**
+	 * @return a number unique to each node on this host, used to keep the
+	 * 		work of different nodes on different worker stripes
+	 */
+	int nextNodeId() {
+		running.incrementAndGet();
+		return nodes.getAndIncrement();
+	}
+	
+	/**
+	 * Called once by each node after it has stopped and its registry
+	 * connection has ended.  Shuts the host down after the last node.
+	 */
+	void nodeStopped() {
+		if (running.decrementAndGet() == 0) {
+			shutdown();
+		}
+	}
+	
+	/**
+	 * @return an event loop, loops are handed out in turn to spread sockets across them
+	 */
+	EventLoop nextLoop() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+	
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+	
+	public StripedExecutor getWorkers() {
+		return workers;
+	}
+	
+	public ExecutorService getMaintenance() {
+		return maintenance;
+	}
+	
+	public BufferPool getReceivePool() {
+		return receivePool;
+	}
+	
+	/**
+	 * @return number of nodes started on this host
+	 */
+	public int getNodeCount() {
+		return nodes.get();
+	}
+	
+	/**
+	 * Stops the shared threads.  Nodes should be shut down first.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+		maintenance.shutdownNow();
+		workers.shutdown();
+		for (EventLoop loop : loops) {
+			loop.close();
+		}
+	}
+}
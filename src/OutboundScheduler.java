@@ -0,0 +1,319 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues outgoing datagrams by priority and sends them on an event loop.
+ * CONTROL datagrams, such as acks, are always sent first.  The remaining
+ * classes share the link by weighted round robin, so a long catch-up cannot
+ * hold back snippets or gossip, and BULK is also held to a bandwidth cap.
+ * The queues are drained by a task on the loop that only runs while there
+ * is something to send, so a node has no sending thread of its own.
+ * @author joshuaplosz
+ *
+ */
+public class OutboundScheduler {
+
+	/**
+	 * Priority classes of outgoing datagrams, highest first.  The weight is
+	 * the number of datagrams a class may send in each round robin turn.
+	 */
+	public enum Priority {
+		CONTROL(0),	// acks and capability offers, sent before anything else
+		SNIPPET(4),	// snippet deliveries
+		GOSSIP(2),	// peer gossip
+		BULK(1);	// catch-up
+		
+		final int weight;
+		
+		Priority(int weight) {
+			this.weight = weight;
+		}
+	}
+	
+	/**
+	 * Sends a single datagram on behalf of the scheduler, on the event loop.
+	 */
+	public interface Link {
+		/**
+		 * @return false if the socket cannot take the datagram now, the link
+		 * 		calls resume() once it can
+		 */
+		boolean send(byte[] data, int peer);
+	}
+	
+	private static final Priority[] WEIGHTED = { Priority.SNIPPET, Priority.GOSSIP, Priority.BULK };
+	private static final int MAX_BULK_QUEUED = 16 * 1024; // BULK datagrams queued before hasRoom turns producers away
+	private static final long CLOSE_TIMEOUT = 500; // milliseconds to finish sending CONTROL datagrams on close
+	private static final int MAX_DRAIN = 256; // datagrams sent before other channels on the loop get a turn
+	
+	/**
+	 * A datagram waiting to be sent.
+	 */
+	private static class Outbound {
+		final byte[] data;
+		final int peer;
+		final Priority priority;
+		final long queued = System.nanoTime();
+		
+		Outbound(byte[] data, int peer, Priority priority) {
+			this.data = data;
+			this.peer = peer;
+			this.priority = priority;
+		}
+	}
+	
+	private final Link link;
+	private final EventLoop loop;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentLinkedQueue<Outbound>[] queues;
+	private final AtomicInteger[] queued;
+	// true from when a drain is handed to the loop until it finds nothing to send
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private volatile boolean open = true;
+	
+	// datagram the socket could not take, only used on the loop
+	private volatile Outbound stalled;
+	
+	// round robin position, only used on the loop
+	private int turn = 0;
+	private int credit = WEIGHTED[0].weight;
+	
+	// BULK bandwidth cap as a byte bucket, only used on the loop
+	private final long bulkRate; // bytes per second, 0 for no cap
+	private final long bulkBurst;
+	private long bulkTokens;
+	private long bulkRefilled = System.nanoTime();
+	
+	/**
+	 * @param link - sends each datagram
+	 * @param bulkRate - bytes per second BULK datagrams may use, 0 for no cap
+	 * @param loop - event loop the datagrams are sent on
+	 * @param scheduler - wakes the sender once the BULK cap allows another datagram
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	OutboundScheduler(Link link, long bulkRate, EventLoop loop, ScheduledExecutorService scheduler) {
+		this.link = link;
+		this.loop = loop;
+		this.scheduler = scheduler;
+		this.bulkRate = bulkRate;
+		// a tenth of a second of bulk traffic may be sent at once
+		this.bulkBurst = Math.max(bulkRate / 10, UDPServer.MAX_DATAGRAM);
+		this.bulkTokens = bulkBurst;
+		
+		Priority[] classes = Priority.values();
+		queues = new ConcurrentLinkedQueue[classes.length];
+		queued = new AtomicInteger[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			queues[i] = new ConcurrentLinkedQueue<Outbound>();
+			queued[i] = new AtomicInteger(0);
+		}
+	}
+	
+	/**
+	 * Queues a datagram without blocking.  BULK producers check hasRoom before
+	 * they produce more, since the callers are shared workers that must not wait.
+	 * @param data - datagram to be sent
+	 * @param peer - id of destination peer
+	 * @param priority - class the datagram is scheduled in
+	 */
+	public void send(byte[] data, int peer, Priority priority) {
+		if (!open) {
+			return;
+		}
+		queues[priority.ordinal()].add(new Outbound(data, peer, priority));
+		queued[priority.ordinal()].incrementAndGet();
+		schedule();
+	}
+	
+	/**
+	 * Hands a drain to the loop unless one is already due.
+	 */
+	private void schedule() {
+		if (draining.compareAndSet(false, true)) {
+			loop.execute(this::drain);
+		}
+	}
+	
+	/**
+	 * Continues sending once the socket can take datagrams again.
+	 * Called by the link on the loop.
+	 */
+	public void resume() {
+		drain();
+	}
+	
+	/**
+	 * Sends queued datagrams on the loop until nothing may be sent now.
+	 */
+	private void drain() {
+		for (int sent = 0; sent < MAX_DRAIN; sent++) {
+			Outbound out = stalled;
+			stalled = null;
+			if (out == null) {
+				out = poll(Priority.CONTROL);
+			}
+			if (out == null && open) {
+				out = nextWeighted();
+			}
+			if (out == null) {
+				if (open && size(Priority.BULK) > 0) {
+					// only BULK is queued and it is over its cap, draining stays set until it is sent
+					scheduler.schedule(() -> loop.execute(this::drain), bulkWait(), TimeUnit.NANOSECONDS);
+					return;
+				}
+				draining.set(false);
+				// a datagram queued after the polls above would otherwise wait for the next send
+				if (sendable() && draining.compareAndSet(false, true)) {
+					continue;
+				}
+				return;
+			}
+			if (!send(out)) {
+				stalled = out; // the link resumes the drain once the socket is writable
+				return;
+			}
+		}
+		loop.execute(this::drain);
+	}
+	
+	/**
+	 * @return true if a datagram is queued that may be sent
+	 */
+	private boolean sendable() {
+		if (!queues[Priority.CONTROL.ordinal()].isEmpty()) {
+			return true;
+		}
+		if (!open) {
+			return false;
+		}
+		for (Priority p : WEIGHTED) {
+			if (!queues[p.ordinal()].isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return false if the socket could not take the datagram
+	 */
+	private boolean send(Outbound out) {
+		NodeEvents.DatagramSend event = new NodeEvents.DatagramSend();
+		event.begin();
+		long started = System.nanoTime();
+		
+		if (!link.send(out.data, out.peer)) {
+			return false;
+		}
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.peer = out.peer;
+			event.size = out.data.length;
+			event.priority = out.priority.name();
+			event.queueWait = started - out.queued;
+			event.commit();
+		}
+		return true;
+	}
+	
+	/**
+	 * Weighted round robin over every class but CONTROL.
+	 * @return next datagram to send, or null if none may be sent now
+	 */
+	private Outbound nextWeighted() {
+		for (int i = 0; i <= WEIGHTED.length; i++) {
+			Priority p = WEIGHTED[turn];
+			if (credit > 0) {
+				Outbound out = (p == Priority.BULK) ? pollBulk() : poll(p);
+				if (out != null) {
+					credit--;
+					return out;
+				}
+			}
+			turn = (turn + 1) % WEIGHTED.length;
+			credit = WEIGHTED[turn].weight;
+		}
+		return null;
+	}
+	
+	private Outbound poll(Priority p) {
+		Outbound out = queues[p.ordinal()].poll();
+		if (out != null) {
+			queued[p.ordinal()].decrementAndGet();
+		}
+		return out;
+	}
+	
+	/**
+	 * @return next BULK datagram if the bandwidth cap allows it to be sent now
+	 */
+	private Outbound pollBulk() {
+		Outbound next = queues[Priority.BULK.ordinal()].peek();
+		if (next == null) {
+			return null;
+		}
+		if (bulkRate > 0) {
+			long now = System.nanoTime();
+			bulkTokens = Math.min(bulkBurst, bulkTokens + (now - bulkRefilled) * bulkRate / 1_000_000_000L);
+			bulkRefilled = now;
+			// a datagram may overdraw the bucket, later datagrams wait for it to refill
+			if (bulkTokens <= 0) {
+				return null;
+			}
+			bulkTokens -= next.data.length;
+		}
+		return poll(Priority.BULK);
+	}
+	
+	/**
+	 * @return nanoseconds until the cap allows a datagram, at most a millisecond
+	 * 		so newly queued CONTROL datagrams are not held up
+	 */
+	private long bulkWait() {
+		long missing = 1 - bulkTokens;
+		return Math.min(missing * 1_000_000_000L / Math.max(bulkRate, 1), 1_000_000L);
+	}
+	
+	/**
+	 * @param priority - class of datagrams
+	 * @return number of datagrams of the class waiting to be sent
+	 */
+	public int size(Priority priority) {
+		return queued[priority.ordinal()].get();
+	}
+	
+	/**
+	 * @param priority - class of datagrams
+	 * @return true if more datagrams of the class may be queued now, only
+	 * 		BULK is ever full
+	 */
+	public boolean hasRoom(Priority priority) {
+		return priority != Priority.BULK || (open && size(Priority.BULK) < MAX_BULK_QUEUED);
+	}
+	
+	/**
+	 * Stops accepting datagrams and waits briefly for queued CONTROL datagrams,
+	 * such as the ack of a stop request, to be sent.  Other queued datagrams
+	 * are dropped.
+	 */
+	public void close() {
+		open = false;
+		schedule();
+		if (loop.inLoop()) {
+			return; // the loop cannot send while it waits here
+		}
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		while ((size(Priority.CONTROL) > 0 || stalled != null) && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of peer messages using a preset dictionary shared by every peer.
+ * A compressed datagram is framed as "zip"<dictionary version> followed by the
+ * deflated payload.  The payload is one or more newline separated messages, 
+ * which allows a batch of catch-up messages to travel in a single datagram.
+ * Peers advertise support with a "capa" message naming the framing they accept.
+ * @author joshuaplosz
+ *
+ */
+public class PayloadCodec {
+	
+	public static final String CAPABILITY = "zip1";
+	public static final int MIN_COMPRESS_SIZE = 64; // smaller messages rarely shrink
+	
+	private static final byte[] MAGIC = CAPABILITY.getBytes(StandardCharsets.US_ASCII);
+	
+	// Preset dictionary built from protocol keywords and the most common words seen in snippets.
+	// Deflate favours matches near the end of the dictionary so the most frequent strings go last.
+	// Changing the dictionary requires a new CAPABILITY version.
+	private static final byte[] DICTIONARY = (
+			"because people should their about would there which think could other after first " +
+			"never these thing where right still those while being going today again really " +
+			"know just like what when your with from that have this will they them then than " +
+			"hello thanks please anyone everyone working meeting update question answer " +
+			"the and for you are not but all can was one our out has get new now see way " +
+			"127.0.0.1:ctch127.0.0.1:snip peer ack ").getBytes(StandardCharsets.US_ASCII);
+	
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_COMPRESSION, true);
+		}
+	};
+	
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	/**
+	 * Compresses one or more newline separated messages into a framed payload.
+	 * @param msg - message(s) to compress as a string
+	 * @return framed compressed payload, or null if compressing did not make the message smaller
+	 */
+	public static byte[] compress(String msg) {
+		byte[] raw = msg.getBytes(StandardCharsets.UTF_8);
+		byte[] out = new byte[MAGIC.length + raw.length];
+		System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+		
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(raw);
+		deflater.finish();
+		int len = deflater.deflate(out, MAGIC.length, raw.length);
+		
+		if (!deflater.finished()) {
+			return null; // output would have been at least as large as the input
+		}
+		byte[] framed = new byte[MAGIC.length + len];
+		System.arraycopy(out, 0, framed, 0, framed.length);
+		return framed;
+	}
+	
+	/**
+	 * @param data - received datagram bytes
+	 * @param length - number of valid bytes in data
+	 * @return true if the datagram is framed as a compressed payload
+	 */
+	public static boolean isCompressed(byte[] data, int length) {
+		if (length < MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decompresses a framed payload into a buffer borrowed from the pool.
+	 * @param data - received datagram bytes
+	 * @param length - number of valid bytes in data
+	 * @param pool - pool providing the buffer to decompress into
+	 * @return the decompressed message(s) as a string, or null if the payload is corrupt or too large
+	 */
+	public static String decompress(byte[] data, int length, BufferPool pool) {
+		byte[] buff = pool.acquire();
+		Inflater inflater = inflaters.get();
+		try {
+			inflater.reset();
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(data, MAGIC.length, length - MAGIC.length);
+			int len = inflater.inflate(buff);
+			if (!inflater.finished()) {
+				MyUtil.log("Compressed payload exceeds " + buff.length + " bytes, dropping.", 2);
+				return null;
+			}
+			return new String(buff, 0, len, StandardCharsets.UTF_8);
+			
+		} catch (DataFormatException e) {
+			MyUtil.log("Unable to decompress payload from peer.", 2);
+			return null;
+		} finally {
+			pool.release(buff);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the peer endpoints known to this process into small integer ids:
+ * those listed by the registry or gossiped by peers, and senders that
+ * introduce themselves.  The endpoint's address is resolved once, when it is
+ * interned, and kept with the id so sending to a peer never parses or resolves
+ * its address again.  Ids are never reused, so they can key any storage for
+ * the life of the process, and at most MAX_PEERS are handed out so endpoints
+ * made up by other hosts cannot grow the table without bound.
+ * @author joshuaplosz
+ *
+ */
+public class PeerTable {
+	
+	public static final int UNKNOWN = -1;
+	public static final int MAX_PEERS = 1 << 16;
+	
+	/**
+	 * A single interned endpoint.
+	 */
+	private static class Endpoint {
+		public final String ip;
+		public final String port;
+		public final String key; // <ip>":"<port>
+		public final InetSocketAddress address;
+		
+		Endpoint(String ip, String port, InetSocketAddress address) {
+			this.ip = ip;
+			this.port = port;
+			this.key = ip + ":" + port;
+			this.address = address;
+		}
+	}
+	
+	// mapping of <ip>":"<port> strings, including unresolved host names, to ids
+	private ConcurrentHashMap<String, Integer> byKey = new ConcurrentHashMap<String, Integer>();
+	// mapping of resolved socket addresses to ids
+	private ConcurrentHashMap<InetSocketAddress, Integer> byAddress = new ConcurrentHashMap<InetSocketAddress, Integer>();
+	private volatile Endpoint[] endpoints = new Endpoint[64];
+	private volatile int size = 0;
+	
+	/**
+	 * @param peer - peer as an <ip>":"<port> string
+	 * @return id of the peer, interned if it was not known, or UNKNOWN if the address is invalid
+	 */
+	public int intern(String peer) {
+		Integer id = byKey.get(peer);
+		if (id != null) {
+			return id;
+		}
+		String[] comp = peer.trim().split(":");
+		if (comp.length != 2) {
+			MyUtil.log("Malformed peer address " + peer, 2);
+			return UNKNOWN;
+		}
+		return intern(comp[0], comp[1]);
+	}
+	
+	/**
+	 * @param ip - IP address or host name of the peer
+	 * @param port - port number of the peer
+	 * @return id of the peer, interned if it was not known, or UNKNOWN if the address is invalid
+	 */
+	public int intern(String ip, String port) {
+		String key = ip + ":" + port;
+		Integer id = byKey.get(key);
+		if (id != null) {
+			return id;
+		}
+		
+		InetSocketAddress address;
+		try {
+			address = new InetSocketAddress(InetAddress.getByName(ip), Integer.parseInt(port));
+		} catch (UnknownHostException | IllegalArgumentException e) {
+			MyUtil.log("Unable to find host at " + key, 2);
+			return UNKNOWN;
+		}
+		
+		// a host name and its numeric address share an id
+		int resolved = intern(address);
+		if (resolved != UNKNOWN) {
+			byKey.putIfAbsent(key, resolved);
+		}
+		return resolved;
+	}
+	
+	/**
+	 * @param peer - peer as an <ip>":"<port> string
+	 * @return id of the peer, or UNKNOWN if it has not been interned
+	 */
+	public int find(String peer) {
+		Integer id = byKey.get(peer.trim());
+		return id != null ? id : UNKNOWN;
+	}
+	
+	/**
+	 * @param address - resolved address of a peer
+	 * @return id of the peer, or UNKNOWN if it has not been interned
+	 */
+	public int find(InetSocketAddress address) {
+		Integer id = byAddress.get(address);
+		return id != null ? id : UNKNOWN;
+	}
+	
+	/**
+	 * @param address - resolved address of the peer, such as the source of a datagram
+	 * @return id of the peer, interned if it was not known, or UNKNOWN if the table is full
+	 */
+	public int intern(InetSocketAddress address) {
+		Integer id = byAddress.get(address);
+		if (id != null) {
+			return id;
+		}
+		
+		synchronized(this) {
+			id = byAddress.get(address);
+			if (id != null) {
+				return id;
+			}
+			if (size == MAX_PEERS) {
+				MyUtil.log("Peer table is full, ignoring " + address, 2);
+				return UNKNOWN;
+			}
+			Endpoint e = new Endpoint(address.getAddress().getHostAddress(), String.valueOf(address.getPort()), address);
+			if (size == endpoints.length) {
+				endpoints = Arrays.copyOf(endpoints, size * 2);
+			}
+			int newId = size;
+			endpoints[newId] = e;
+			size++;
+			
+			byKey.putIfAbsent(e.key, newId);
+			byAddress.put(address, newId);
+			return newId;
+		}
+	}
+	
+	public InetSocketAddress address(int id) {
+		return endpoints[id].address;
+	}
+	
+	public String ip(int id) {
+		return endpoints[id].ip;
+	}
+	
+	public String port(int id) {
+		return endpoints[id].port;
+	}
+	
+	/**
+	 * @param id - id of an interned peer
+	 * @return the peer as an <ip>":"<port> string
+	 */
+	public String key(int id) {
+		return endpoints[id].key;
+	}
+	
+	/**
+	 * @return number of interned peers, ids range from 0 to size - 1
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket limits on the datagrams accepted from each peer and from all
+ * peers together.  Each bucket is kept as the single time at which it will
+ * next be full (the generic cell rate algorithm), so checking a datagram is 
+ * one compare-and-set per bucket and no timer is needed to refill them.
+ * @author joshuaplosz
+ *
+ */
+public class RateLimiter {
+	
+	private final long start = System.nanoTime();
+	
+	private final long peerInterval;	// nanoseconds per datagram from a single peer, 0 for no limit
+	private final long peerTolerance;	// nanoseconds a peer may run ahead of its rate, its burst
+	private final long globalInterval;
+	private final long globalTolerance;
+	
+	private static final int CHUNK_BITS = 10; // peer buckets per chunk as a power of 2
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+	
+	// indexed by peer id, time each peer's bucket is next full in nanoseconds after start.
+	// Chunks are never copied when more are added, so no update is lost to a resize.
+	private volatile AtomicLongArray[] peerBuckets = { new AtomicLongArray(1 << CHUNK_BITS) };
+	// shared by every sender that has no id yet, so new source ports cannot each get a full bucket
+	private final AtomicLong unknownBucket = new AtomicLong(0);
+	private final AtomicLong globalBucket = new AtomicLong(0);
+	
+	private final AtomicLong peerDrops = new AtomicLong(0);
+	private final AtomicLong globalDrops = new AtomicLong(0);
+	
+	/**
+	 * @param peerRate - datagrams per second accepted from a single peer, 0 for no limit
+	 * @param peerBurst - datagrams a single peer may send at once
+	 * @param globalRate - datagrams per second accepted from all peers, 0 for no limit
+	 * @param globalBurst - datagrams all peers may send at once
+	 */
+	RateLimiter(int peerRate, int peerBurst, int globalRate, int globalBurst) {
+		peerInterval = peerRate > 0 ? 1_000_000_000L / peerRate : 0;
+		peerTolerance = peerInterval * Math.max(peerBurst - 1, 0);
+		globalInterval = globalRate > 0 ? 1_000_000_000L / globalRate : 0;
+		globalTolerance = globalInterval * Math.max(globalBurst - 1, 0);
+	}
+	
+	/**
+	 * Takes a token from the peer's bucket and then from the global bucket.
+	 * @param peer - id of the sending peer
+	 * @return true if the datagram is within both limits and should be handled
+	 */
+	public boolean allow(int peer) {
+		long now = System.nanoTime() - start;
+		if (peerInterval > 0 && !take(peerBucket(peer), peer & CHUNK_MASK, now, peerInterval, peerTolerance)) {
+			peerDrops.incrementAndGet();
+			return false;
+		}
+		if (globalInterval > 0 && !take(globalBucket, now, globalInterval, globalTolerance)) {
+			globalDrops.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Takes a token from the bucket shared by senders that have no id yet,
+	 * as if they were a single peer, and then from the global bucket.
+	 * @return true if the datagram is within both limits and should be handled
+	 */
+	public boolean allowUnknown() {
+		long now = System.nanoTime() - start;
+		if (peerInterval > 0 && !take(unknownBucket, now, peerInterval, peerTolerance)) {
+			peerDrops.incrementAndGet();
+			return false;
+		}
+		if (globalInterval > 0 && !take(globalBucket, now, globalInterval, globalTolerance)) {
+			globalDrops.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	private boolean take(AtomicLongArray buckets, int i, long now, long interval, long tolerance) {
+		while (true) {
+			long full = buckets.get(i);
+			long next = Math.max(full, now);
+			if (next - now > tolerance) {
+				return false;
+			}
+			if (buckets.compareAndSet(i, full, next + interval)) {
+				return true;
+			}
+		}
+	}
+	
+	private boolean take(AtomicLong bucket, long now, long interval, long tolerance) {
+		while (true) {
+			long full = bucket.get();
+			long next = Math.max(full, now);
+			if (next - now > tolerance) {
+				return false;
+			}
+			if (bucket.compareAndSet(full, next + interval)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * @return the chunk holding the peer's bucket, added first if there is none
+	 */
+	private AtomicLongArray peerBucket(int peer) {
+		int chunk = peer >>> CHUNK_BITS;
+		AtomicLongArray[] chunks = peerBuckets;
+		if (chunk < chunks.length) {
+			return chunks[chunk];
+		}
+		synchronized(this) {
+			chunks = peerBuckets;
+			if (chunk >= chunks.length) {
+				int n = chunks.length;
+				chunks = Arrays.copyOf(chunks, chunk + 1);
+				for (int i = n; i < chunks.length; i++) {
+					chunks[i] = new AtomicLongArray(1 << CHUNK_BITS);
+				}
+				peerBuckets = chunks;
+			}
+			return chunks[chunk];
+		}
+	}
+	
+	/**
+	 * @return number of datagrams dropped for exceeding their peer's limit
+	 */
+	public long getPeerDrops() {
+		return peerDrops.get();
+	}
+	
+	/**
+	 * @return number of datagrams dropped for exceeding the global limit
+	 */
+	public long getGlobalDrops() {
+		return globalDrops.get();
+	}
+}
@@ -0,0 +1,225 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits payloads that are too large for a single datagram into fragments
+ * and reassembles received fragments back into the original payload.
+ * A fragment is framed as:
+ * 		"frag"<message id><total length><offset><fragment data>
+ * where the id, length and offset are 4 byte integers.  Each fragment is copied
+ * once, directly into its place in a pooled buffer holding the whole payload.
+ * Incomplete payloads are discarded after a timeout, and the buffers held for
+ * any one peer, and for all peers together, are capped so peers cannot exhaust
+ * memory with partial payloads.  A completed payload is handed to its receiver
+ * outside the reassembler's lock, so payloads are handled in parallel.
+ * @author joshuaplosz
+ *
+ */
+public class Reassembler {
+	
+	public static final String CAPABILITY = "frag1";
+	public static final int MAX_PAYLOAD = 64 * 1024; // largest payload that can be reassembled
+	
+	private static final byte[] MAGIC = "frag".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER_SIZE = MAGIC.length + 12;
+	private static final int FRAGMENT_SIZE = UDPServer.MAX_DATAGRAM - HEADER_SIZE;
+	
+	private static final long TIMEOUT_MS = 5 * 1000;	// time allowed for all fragments to arrive
+	private static final int MAX_PARTIALS_PER_PEER = 4;	// MAX_PAYLOAD bytes held per partial payload
+	private static final int MAX_PARTIALS = 64;			// partial payloads held for all peers together
+	
+	private static AtomicInteger nextId = new AtomicInteger(0);
+	
+	private BufferPool pool = new BufferPool(MAX_PAYLOAD, 16);
+	// mapping of a peer's id to the payloads partially received from it
+	private HashMap<Integer, HashMap<Integer, Partial>> partials = new HashMap<>();
+	private int held = 0; // partial payloads in partials
+	private long lastSweep = System.currentTimeMillis();
+	
+	/**
+	 * Receives a reassembled payload.  The payload buffer is returned to
+	 * the pool once the receiver returns and must not be kept.
+	 */
+	public interface Receiver {
+		void payload(byte[] data, int length);
+	}
+	
+	/**
+	 * A payload for which some, but not all, fragments have arrived.
+	 */
+	private class Partial {
+		public byte[] buff;
+		public int length;
+		public BitSet received = new BitSet();
+		public int bytesReceived = 0;
+		public long started = System.currentTimeMillis();
+		
+		Partial(int length) {
+			this.length = length;
+			buff = pool.acquire();
+		}
+	}
+	
+	/**
+	 * Splits a payload into fragments that each fit in a single datagram.
+	 * @param payload - payload to split
+	 * @return framed fragments, or null if the payload is larger than MAX_PAYLOAD
+	 */
+	public static ArrayList<byte[]> fragment(byte[] payload) {
+		if (payload.length > MAX_PAYLOAD) {
+			return null;
+		}
+		int id = nextId.incrementAndGet();
+		ArrayList<byte[]> fragments = new ArrayList<byte[]>();
+		for (int offset = 0; offset < payload.length; offset += FRAGMENT_SIZE) {
+			int len = Math.min(FRAGMENT_SIZE, payload.length - offset);
+			ByteBuffer frag = ByteBuffer.allocate(HEADER_SIZE + len);
+			frag.put(MAGIC).putInt(id).putInt(payload.length).putInt(offset);
+			frag.put(payload, offset, len);
+			fragments.add(frag.array());
+		}
+		return fragments;
+	}
+	
+	/**
+	 * @param data - received datagram bytes
+	 * @param length - number of valid bytes in data
+	 * @return true if the datagram is framed as a fragment
+	 */
+	public static boolean isFragment(byte[] data, int length) {
+		if (length < HEADER_SIZE) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Copies a received fragment into the payload it belongs to, and hands the
+	 * payload to the receiver if this was the last missing fragment.
+	 * @param peer - id of the peer the fragment came from
+	 * @param data - received datagram bytes
+	 * @param length - number of valid bytes in data
+	 * @param receiver - receiver of the completed payload, called on this thread
+	 */
+	public void accept(int peer, byte[] data, int length, Receiver receiver) {
+		ByteBuffer frag = ByteBuffer.wrap(data, MAGIC.length, length - MAGIC.length);
+		int id = frag.getInt();
+		int total = frag.getInt();
+		int offset = frag.getInt();
+		int len = length - HEADER_SIZE;
+		
+		if (total <= 0 || total > MAX_PAYLOAD || offset < 0 || offset % FRAGMENT_SIZE != 0 
+				|| len != Math.min(FRAGMENT_SIZE, total - offset)) {
+			MyUtil.log("Malformed fragment from " + peer, 2);
+			return;
+		}
+		
+		Partial p = add(peer, id, total, offset, data, len);
+		if (p != null) {
+			try {
+				receiver.payload(p.buff, p.length);
+			} finally {
+				pool.release(p.buff);
+			}
+		}
+	}
+	
+	/**
+	 * Copies a fragment into its partial payload.
+	 * @return the payload if the fragment completed it, it is no longer held
+	 */
+	private synchronized Partial add(int peer, int id, int total, int offset, byte[] data, int len) {
+		sweep();
+		HashMap<Integer, Partial> fromPeer = partials.get(peer);
+		if (fromPeer == null) {
+			fromPeer = new HashMap<Integer, Partial>();
+			partials.put(peer, fromPeer);
+		}
+		expire(fromPeer);
+		
+		Partial p = fromPeer.get(id);
+		if (p == null) {
+			if (fromPeer.size() >= MAX_PARTIALS_PER_PEER) {
+				MyUtil.log("Too many partial payloads from " + peer + ", dropping fragment.", 2);
+				return null;
+			}
+			if (held >= MAX_PARTIALS) {
+				MyUtil.log("Too many partial payloads, dropping fragment from " + peer, 2);
+				if (fromPeer.isEmpty()) {
+					partials.remove(peer);
+				}
+				return null;
+			}
+			p = new Partial(total);
+			fromPeer.put(id, p);
+			held++;
+		} else if (p.length != total) {
+			MyUtil.log("Fragment length mismatch from " + peer, 2);
+			return null;
+		}
+		
+		int index = offset / FRAGMENT_SIZE;
+		if (p.received.get(index)) {
+			return null; // duplicate fragment
+		}
+		System.arraycopy(data, HEADER_SIZE, p.buff, offset, len);
+		p.received.set(index);
+		p.bytesReceived += len;
+		
+		if (p.bytesReceived < p.length) {
+			return null;
+		}
+		fromPeer.remove(id);
+		held--;
+		if (fromPeer.isEmpty()) {
+			partials.remove(peer);
+		}
+		return p;
+	}
+	
+	/**
+	 * Expires partial payloads from every peer, at most once per timeout period,
+	 * so peers that stop sending do not hold on to buffers.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		if (now - lastSweep < TIMEOUT_MS) {
+			return;
+		}
+		lastSweep = now;
+		Iterator<HashMap<Integer, Partial>> it = partials.values().iterator();
+		while (it.hasNext()) {
+			HashMap<Integer, Partial> fromPeer = it.next();
+			expire(fromPeer);
+			if (fromPeer.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Discards partial payloads that have waited longer than the timeout
+	 * and returns their buffers to the pool.
+	 * @param fromPeer - partial payloads from a single peer
+	 */
+	private void expire(HashMap<Integer, Partial> fromPeer) {
+		long now = System.currentTimeMillis();
+		Iterator<Partial> it = fromPeer.values().iterator();
+		while (it.hasNext()) {
+			Partial p = it.next();
+			if (now - p.started > TIMEOUT_MS) {
+				it.remove();
+				held--;
+				pool.release(p.buff);
+			}
+		}
+	}
+}
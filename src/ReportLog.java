@@ -0,0 +1,130 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Lines kept for the registry report, such as the messages sent and the
+ * acks received, in the order they were added.  Adding a line never waits.
+ * The newest lines are held in memory and spill() moves the older ones to
+ * a file in the temp directory, which is read back when the lines are
+ * reported, so memory stays bounded however long the process runs.
+ * @author joshuaplosz
+ *
+ */
+public class ReportLog {
+	
+	private final String name; // prefix of the file's name
+	private final ConcurrentLinkedQueue<String> hot = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger hotCount = new AtomicInteger(0);
+	
+	// guarded by this
+	private File coldFile;
+	private BufferedWriter cold;
+	private long coldCount = 0;
+	
+	/**
+	 * @param name - prefix of the name of the file older lines are moved to
+	 */
+	ReportLog(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Adds a line, times times.
+	 * @param line - line ending in a newline
+	 * @param times - number of copies to add
+	 */
+	public void add(String line, int times) {
+		for (int i = 0; i < times; i++) {
+			hot.add(line);
+		}
+		hotCount.addAndGet(times);
+	}
+	
+	public void add(String line) {
+		add(line, 1);
+	}
+	
+	/**
+	 * Moves the oldest lines to the file until at most keep are in memory.
+	 * @param keep - maximum number of lines left in memory
+	 */
+	public synchronized void spill(int keep) {
+		if (hotCount.get() <= keep) {
+			return;
+		}
+		try {
+			if (cold == null) {
+				if (coldFile != null) {
+					return; // the file failed earlier, keep the lines in memory
+				}
+				coldFile = File.createTempFile(name + "-", ".report");
+				coldFile.deleteOnExit();
+				cold = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(coldFile), StandardCharsets.UTF_8), 64 * 1024);
+			}
+			while (hotCount.get() > keep) {
+				String line = hot.poll();
+				hotCount.decrementAndGet();
+				cold.write(line);
+				coldCount++;
+			}
+			cold.flush();
+		} catch (IOException e) {
+			// lines in the file are dropped, later lines stay in memory
+			MyUtil.log("Unable to write report lines to disk, they are dropped", 2);
+			e.printStackTrace();
+			coldCount = 0;
+			try {
+				cold.close();
+			} catch (IOException ignored) {
+				// already failed
+			}
+			cold = null;
+		}
+	}
+	
+	/**
+	 * Passes the number of lines, then every line in the order it was added.
+	 * Lines added meanwhile are left for the next report.
+	 * @param out - receives the count as <count>"\n", then each line
+	 */
+	public synchronized void report(Consumer<String> out) {
+		ArrayList<String> recent = new ArrayList<String>(hot);
+		out.accept(coldCount + recent.size() + "\n");
+		long read = 0;
+		if (coldCount > 0) {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(coldFile), StandardCharsets.UTF_8), 64 * 1024)) {
+				String line;
+				while (read < coldCount && (line = in.readLine()) != null) {
+					out.accept(line + "\n");
+					read++;
+				}
+			} catch (IOException e) {
+				MyUtil.log("Unable to read report lines from disk", 2);
+			}
+		}
+		for (; read < coldCount; read++) {
+			out.accept("\n"); // keeps the count right if the file could not be read
+		}
+		for (String line : recent) {
+			out.accept(line);
+		}
+	}
+	
+	/**
+	 * @return number of lines held in memory and on disk
+	 */
+	public synchronized long size() {
+		return coldCount + hotCount.get();
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * Limits on the snippets and sources a GroupManager keeps in memory.
+ * Snippets past a limit are moved to disk, sources past a limit are
+ * forgotten.  A limit of 0 is no limit.
+ * @author joshuaplosz
+ *
+ */
+public class Retention {
+	
+	public final int maxSnippets;		// snippets kept in memory
+	public final long maxSnippetBytes;	// bytes of snippet content kept in memory
+	public final long maxSnippetAge;	// milliseconds a snippet is kept in memory
+	public final int maxSources;		// sources of each kind kept for the report
+	public final long maxSourceAge;		// milliseconds a source is kept for the report
+	
+	Retention(int maxSnippets, long maxSnippetBytes, long maxSnippetAge, int maxSources, long maxSourceAge) {
+		this.maxSnippets = maxSnippets;
+		this.maxSnippetBytes = maxSnippetBytes;
+		this.maxSnippetAge = maxSnippetAge;
+		this.maxSources = maxSources;
+		this.maxSourceAge = maxSourceAge;
+	}
+}
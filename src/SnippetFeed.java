@@ -0,0 +1,229 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes newly stored snippets to subscribers as they arrive.  Each subscriber
+ * has a bounded queue drained by its own thread, so a slow listener does not
+ * hold up the others.  What happens when a queue is full is chosen per
+ * subscriber: the newest or oldest snippet is dropped, or the storing thread
+ * waits for room.  Snippets are stored on the host's shared workers, so
+ * waiting stalls every node on the host; a wait longer than MAX_BLOCK
+ * drops the snippet instead.
+ * @author joshuaplosz
+ *
+ */
+public class SnippetFeed {
+
+	/**
+	 * Selects the snippets a subscriber receives.  Called on the thread
+	 * storing the snippet, so it should be quick.
+	 */
+	public interface Filter {
+		boolean accept(int timestamp, String content, String origin);
+	}
+	
+	/**
+	 * Receives snippets on the subscriber's own thread, in the order they were stored.
+	 */
+	public interface Listener {
+		void onSnippet(int timestamp, String content, String origin);
+	}
+	
+	/**
+	 * What to do with a snippet when a subscriber's queue is full.
+	 */
+	public enum Overflow {
+		BLOCK,			// wait up to MAX_BLOCK for room, stalling the storing worker
+		DROP_NEWEST,	// discard the snippet being stored
+		DROP_OLDEST		// discard the longest queued snippet to make room
+	}
+	
+	public static final Filter ALL = (timestamp, content, origin) -> true;
+	
+	private static final long BLOCK_CHECK = 100; // milliseconds between checks that a blocked subscription is still active
+	public static final long MAX_BLOCK = 1000; // milliseconds a BLOCK subscriber may hold the storing thread per snippet
+	
+	/**
+	 * A snippet waiting to be passed to a listener.
+	 */
+	private static class Entry {
+		final int timestamp;
+		final String content;
+		final String origin;
+		
+		Entry(int timestamp, String content, String origin) {
+			this.timestamp = timestamp;
+			this.content = content;
+			this.origin = origin;
+		}
+	}
+	
+	/**
+	 * A single subscriber's filter, queue and delivering thread.
+	 */
+	public class Subscription implements Runnable {
+		private final Filter filter;
+		private final Listener listener;
+		private final Overflow overflow;
+		private final ArrayBlockingQueue<Entry> queue;
+		private final AtomicLong dropped = new AtomicLong(0);
+		private volatile boolean active = true;
+		private final Thread thread;
+		
+		Subscription(Filter filter, Listener listener, int capacity, Overflow overflow) {
+			this.filter = filter;
+			this.listener = listener;
+			this.overflow = overflow;
+			this.queue = new ArrayBlockingQueue<Entry>(capacity);
+			thread = new Thread(this, "Subscriber " + subscriberCount.incrementAndGet());
+			thread.setDaemon(true);
+		}
+		
+		/**
+		 * Queues a snippet that passes the filter, applying the overflow policy if the queue is full.
+		 */
+		void offer(int timestamp, String content, String origin) {
+			if (!active || !filter.accept(timestamp, content, origin)) {
+				return;
+			}
+			Entry e = new Entry(timestamp, content, origin);
+			switch (overflow) {
+			case BLOCK:
+				try {
+					long waited = 0;
+					while (active && !queue.offer(e, BLOCK_CHECK, TimeUnit.MILLISECONDS)) {
+						waited += BLOCK_CHECK;
+						if (waited >= MAX_BLOCK) {
+							drop(); // the listener is too slow, don't stall the node any longer
+							break;
+						}
+					}
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					drop();
+				}
+				break;
+			case DROP_NEWEST:
+				if (!queue.offer(e)) {
+					drop();
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(e)) {
+					if (queue.poll() != null) {
+						drop();
+					}
+				}
+				break;
+			}
+		}
+		
+		private void drop() {
+			dropped.incrementAndGet();
+			totalDropped.incrementAndGet();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (active) {
+					Entry e = queue.poll(BLOCK_CHECK, TimeUnit.MILLISECONDS);
+					if (e == null) {
+						continue;
+					}
+					try {
+						listener.onSnippet(e.timestamp, e.content, e.origin);
+					} catch (RuntimeException ex) {
+						// a failing listener keeps its subscription
+						MyUtil.log("Snippet listener failed: " + ex.getMessage(), 2);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Stops delivering snippets.  Snippets still queued are discarded.
+		 */
+		public void cancel() {
+			active = false;
+			subscriptions.remove(this);
+			queue.clear();
+		}
+		
+		/**
+		 * @return number of snippets dropped because the queue was full
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+		
+		/**
+		 * @return number of snippets waiting to be passed to the listener
+		 */
+		public int getQueued() {
+			return queue.size();
+		}
+	}
+	
+	private final PeerTable peers;
+	private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final AtomicInteger subscriberCount = new AtomicInteger(0);
+	private final AtomicLong totalDropped = new AtomicLong(0);
+	
+	/**
+	 * @param peers - table used to name the origin of each snippet
+	 */
+	SnippetFeed(PeerTable peers) {
+		this.peers = peers;
+	}
+	
+	/**
+	 * Starts pushing newly stored snippets to a listener.
+	 * @param filter - selects the snippets the listener receives
+	 * @param listener - receives snippets on its own thread
+	 * @param capacity - number of snippets that may wait for the listener
+	 * @param overflow - what to do with a snippet when capacity is reached
+	 * @return subscription that can be cancelled
+	 */
+	public Subscription subscribe(Filter filter, Listener listener, int capacity, Overflow overflow) {
+		Subscription s = new Subscription(filter, listener, capacity, overflow);
+		subscriptions.add(s);
+		s.thread.start();
+		return s;
+	}
+	
+	/**
+	 * Passes a newly stored snippet to every subscriber.
+	 * @param timestamp - timestamp of the snippet
+	 * @param content - snippet content
+	 * @param origin - id of the peer that created the snippet
+	 */
+	void publish(int timestamp, String content, int origin) {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		String originKey = peers.key(origin);
+		for (Subscription s : subscriptions) {
+			s.offer(timestamp, content, originKey);
+		}
+	}
+	
+	/**
+	 * @return number of active subscriptions
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+	
+	/**
+	 * @return number of snippets dropped across every subscription
+	 */
+	public long getDropped() {
+		return totalDropped.get();
+	}
+}
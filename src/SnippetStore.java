@@ -0,0 +1,590 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Append-only columnar storage for every snippet held by this process.
+ * Each snippet is a row of primitive columns: its timestamp, the PeerTable
+ * id of its origin, the second it arrived, and the location and length of
+ * its UTF-8 content.  Content is packed into large slabs, on or off heap,
+ * so a stored snippet costs a few dozen bytes plus its content instead of
+ * several objects.  Strings are only created when a snippet is read.
+ *
+ * Rows are numbered in the order they arrive.  The oldest rows are evicted
+ * from memory to a cold file on disk, which is read when every snippet is
+ * visited or by a cursor.  The offsets that let a cursor start near any
+ * evicted row are kept in a second file, so nothing is held in memory per
+ * evicted row and memory stays bounded however long the process runs.
+ * A single writer appends or evicts at a time; readers take a View, which
+ * keeps the rows it covers readable even if they are evicted meanwhile.
+ * @author joshuaplosz
+ *
+ */
+public class SnippetStore {
+
+	private static final int CHUNK_BITS = 12; // rows per column chunk as a power of 2
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int SLAB_SIZE = 1024 * 1024; // bytes of content per slab
+	private static final int COLD_MARK = 64; // rows of the cold file between recorded offsets
+	
+	/**
+	 * Receives snippets visited in the order they arrived.
+	 */
+	public interface Visitor {
+		void visit(int timestamp, int origin, String content);
+	}
+	
+	/**
+	 * The column chunks and slabs holding the rows in memory.  Replaced,
+	 * never changed, when a chunk or slab is added or evicted.
+	 */
+	private static final class Columns {
+		final int chunkBase; // chunk number of the first chunk held
+		final int[][] timestamps;
+		final int[][] origins;
+		final int[][] arrivals; // seconds after the store was created
+		final long[][] locations; // <slab number> << 32 | <offset in slab>
+		final int[][] lengths;
+		final int slabBase; // slab number of the first slab held
+		final ByteBuffer[] slabs;
+		
+		Columns(int chunkBase, int[][] timestamps, int[][] origins, int[][] arrivals, long[][] locations, int[][] lengths,
+				int slabBase, ByteBuffer[] slabs) {
+			this.chunkBase = chunkBase;
+			this.timestamps = timestamps;
+			this.origins = origins;
+			this.arrivals = arrivals;
+			this.locations = locations;
+			this.lengths = lengths;
+			this.slabBase = slabBase;
+			this.slabs = slabs;
+		}
+	}
+	
+	private final boolean direct;
+	private final long created = System.currentTimeMillis();
+	
+	private volatile Columns columns = new Columns(0, new int[0][], new int[0][], new int[0][], new long[0][], new int[0][],
+			0, new ByteBuffer[0]);
+	private volatile int first = 0; // oldest row in memory
+	private volatile int size = 0; // one past the newest row
+	
+	private ByteBuffer slab; // slab currently written to, null before the first append
+	private int slabNumber = -1;
+	private long memoryBytes = 0; // content bytes of rows in memory
+	
+	private File coldFile;
+	private DataOutputStream cold;
+	private volatile long coldCount = 0;
+	private long coldBytes = 0; // length of the cold file
+	// offset in the cold file of every COLD_MARK-th row, so readers can start near any row
+	private FileChannel coldMarks;
+	private long lost = 0; // rows evicted that could not be written to the cold file
+	
+	/**
+	 * @param direct - true to keep content in direct buffers outside the Java heap
+	 */
+	SnippetStore(boolean direct) {
+		this.direct = direct;
+	}
+	
+	/**
+	 * Adds a snippet as a new row.
+	 * @param timestamp - snippet's timestamp
+	 * @param origin - PeerTable id of the snippet's origin
+	 * @param content - snippet's content
+	 * @return number of the new row
+	 */
+	public synchronized int append(int timestamp, int origin, String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		if (slab == null || slab.remaining() < bytes.length) {
+			newSlab(Math.max(SLAB_SIZE, bytes.length));
+		}
+		long location = ((long) slabNumber << 32) | slab.position();
+		slab.put(bytes);
+		memoryBytes += bytes.length;
+		
+		int row = size;
+		Columns c = columns;
+		int chunk = (row >>> CHUNK_BITS) - c.chunkBase;
+		if (chunk == c.timestamps.length) {
+			c = newChunk(c);
+		}
+		int i = row & CHUNK_MASK;
+		c.timestamps[chunk][i] = timestamp;
+		c.origins[chunk][i] = origin;
+		c.arrivals[chunk][i] = (int) ((System.currentTimeMillis() - created) / 1000);
+		c.locations[chunk][i] = location;
+		c.lengths[chunk][i] = bytes.length;
+		size = row + 1; // publishes the row to readers
+		return row;
+	}
+	
+	private Columns newChunk(Columns c) {
+		int n = c.timestamps.length;
+		int[][] timestamps = Arrays.copyOf(c.timestamps, n + 1);
+		int[][] origins = Arrays.copyOf(c.origins, n + 1);
+		int[][] arrivals = Arrays.copyOf(c.arrivals, n + 1);
+		long[][] locations = Arrays.copyOf(c.locations, n + 1);
+		int[][] lengths = Arrays.copyOf(c.lengths, n + 1);
+		timestamps[n] = new int[CHUNK_SIZE];
+		origins[n] = new int[CHUNK_SIZE];
+		arrivals[n] = new int[CHUNK_SIZE];
+		locations[n] = new long[CHUNK_SIZE];
+		lengths[n] = new int[CHUNK_SIZE];
+		columns = new Columns(c.chunkBase, timestamps, origins, arrivals, locations, lengths, c.slabBase, c.slabs);
+		return columns;
+	}
+	
+	private void newSlab(int capacity) {
+		slab = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		slabNumber++;
+		Columns c = columns;
+		ByteBuffer[] slabs = Arrays.copyOf(c.slabs, c.slabs.length + 1);
+		// readers read from their own view of the slab
+		slabs[slabs.length - 1] = slab.duplicate();
+		columns = new Columns(c.chunkBase, c.timestamps, c.origins, c.arrivals, c.locations, c.lengths, c.slabBase, slabs);
+	}
+	
+	/**
+	 * Moves the oldest rows to the cold file until the rows in memory are
+	 * within every limit.  A limit of 0 is no limit.
+	 * @param maxRows - maximum number of rows in memory
+	 * @param maxBytes - maximum content bytes in memory
+	 * @param maxAge - maximum milliseconds a row stays in memory
+	 * @return number of rows evicted
+	 */
+	public synchronized int evict(int maxRows, long maxBytes, long maxAge) {
+		Columns c = columns;
+		int f = first;
+		int n = size;
+		long rows = maxRows > 0 ? maxRows : Long.MAX_VALUE;
+		long bytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+		long oldest = maxAge > 0 ? (System.currentTimeMillis() - created - maxAge) / 1000 : Long.MIN_VALUE;
+		
+		while (f < n && (n - f > rows || memoryBytes > bytes || arrival(c, f) < oldest)) {
+			writeCold(c, f);
+			memoryBytes -= length(c, f);
+			f++;
+		}
+		int evicted = f - first;
+		if (evicted == 0) {
+			return 0;
+		}
+		flushCold();
+		
+		// release every chunk and slab holding only evicted rows
+		int dropChunks = (f >>> CHUNK_BITS) - c.chunkBase;
+		int keepSlab = f < n ? (int) (location(c, f) >>> 32) : slabNumber;
+		int dropSlabs = keepSlab - c.slabBase;
+		first = f;
+		columns = new Columns(c.chunkBase + dropChunks,
+				Arrays.copyOfRange(c.timestamps, dropChunks, c.timestamps.length),
+				Arrays.copyOfRange(c.origins, dropChunks, c.origins.length),
+				Arrays.copyOfRange(c.arrivals, dropChunks, c.arrivals.length),
+				Arrays.copyOfRange(c.locations, dropChunks, c.locations.length),
+				Arrays.copyOfRange(c.lengths, dropChunks, c.lengths.length),
+				keepSlab, Arrays.copyOfRange(c.slabs, dropSlabs, c.slabs.length));
+		return evicted;
+	}
+	
+	/**
+	 * Appends a row to the cold file as <timestamp><origin><length><content>.
+	 */
+	private void writeCold(Columns c, int row) {
+		try {
+			if (cold == null) {
+				if (coldFile != null) {
+					lost++; // the cold file failed earlier
+					return;
+				}
+				coldFile = File.createTempFile("snippets-", ".cold");
+				coldFile.deleteOnExit();
+				File marksFile = File.createTempFile("snippets-", ".marks");
+				marksFile.deleteOnExit();
+				coldMarks = new RandomAccessFile(marksFile, "rw").getChannel();
+				cold = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(coldFile), 64 * 1024));
+			}
+			int length = length(c, row);
+			if (coldCount % COLD_MARK == 0) {
+				ByteBuffer mark = ByteBuffer.allocate(8).putLong(0, coldBytes);
+				long position = coldCount / COLD_MARK * 8;
+				while (mark.hasRemaining()) {
+					coldMarks.write(mark, position + mark.position());
+				}
+			}
+			cold.writeInt(timestamp(c, row));
+			cold.writeInt(origin(c, row));
+			cold.writeInt(length);
+			ByteBuffer s = slab(c, row);
+			if (s.hasArray()) {
+				cold.write(s.array(), s.arrayOffset() + (int) location(c, row), length);
+			} else {
+				cold.write(bytes(c, row));
+			}
+			coldBytes += 12 + length;
+			coldCount++;
+		} catch (IOException e) {
+			MyUtil.log("Unable to write evicted snippets to disk, they are dropped", 2);
+			e.printStackTrace();
+			closeCold();
+			lost++;
+		}
+	}
+	
+	private void flushCold() {
+		try {
+			if (cold != null) {
+				cold.flush();
+			}
+		} catch (IOException e) {
+			MyUtil.log("Unable to write evicted snippets to disk, they are dropped", 2);
+			e.printStackTrace();
+			closeCold();
+		}
+	}
+	
+	private void closeCold() {
+		try {
+			if (cold != null) {
+				cold.close();
+			}
+		} catch (IOException e) {
+			// already failed
+		}
+		cold = null;
+	}
+	
+	/**
+	 * Reads the first count rows of the cold file.
+	 */
+	private void readCold(long count, Visitor visitor) {
+		if (count == 0) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(coldFile), 64 * 1024))) {
+			byte[] content = new byte[256];
+			for (long i = 0; i < count; i++) {
+				int timestamp = in.readInt();
+				int origin = in.readInt();
+				int length = in.readInt();
+				if (length > content.length) {
+					content = new byte[Math.max(length, content.length * 2)];
+				}
+				in.readFully(content, 0, length);
+				visitor.visit(timestamp, origin, new String(content, 0, length, StandardCharsets.UTF_8));
+			}
+		} catch (IOException e) {
+			MyUtil.log("Unable to read evicted snippets from disk", 2);
+			e.printStackTrace();
+		}
+	}
+	
+	private static int timestamp(Columns c, int row) {
+		return c.timestamps[(row >>> CHUNK_BITS) - c.chunkBase][row & CHUNK_MASK];
+	}
+	
+	private static int origin(Columns c, int row) {
+		return c.origins[(row >>> CHUNK_BITS) - c.chunkBase][row & CHUNK_MASK];
+	}
+	
+	private static int arrival(Columns c, int row) {
+		return c.arrivals[(row >>> CHUNK_BITS) - c.chunkBase][row & CHUNK_MASK];
+	}
+	
+	private static long location(Columns c, int row) {
+		return c.locations[(row >>> CHUNK_BITS) - c.chunkBase][row & CHUNK_MASK];
+	}
+	
+	private static int length(Columns c, int row) {
+		return c.lengths[(row >>> CHUNK_BITS) - c.chunkBase][row & CHUNK_MASK];
+	}
+	
+	private static ByteBuffer slab(Columns c, int row) {
+		return c.slabs[(int) (location(c, row) >>> 32) - c.slabBase];
+	}
+	
+	/**
+	 * @return copy of the row's content
+	 */
+	private static byte[] bytes(Columns c, int row) {
+		byte[] bytes = new byte[length(c, row)];
+		ByteBuffer view = slab(c, row).duplicate();
+		view.position((int) location(c, row));
+		view.get(bytes);
+		return bytes;
+	}
+	
+	private static String content(Columns c, int row) {
+		ByteBuffer s = slab(c, row);
+		if (s.hasArray()) {
+			return new String(s.array(), s.arrayOffset() + (int) location(c, row), length(c, row), StandardCharsets.UTF_8);
+		}
+		return new String(bytes(c, row), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * A consistent view of the store when it was taken.  Rows in memory
+	 * when the view was taken stay readable through it after they are evicted.
+	 * @author joshuaplosz
+	 *
+	 */
+	public class View {
+		private final Columns c;
+		private final int first;
+		private final int size;
+		private final long coldCount;
+		
+		private View(Columns c, int first, int size, long coldCount) {
+			this.c = c;
+			this.first = first;
+			this.size = size;
+			this.coldCount = coldCount;
+		}
+		
+		/**
+		 * @return number of snippets in memory and on disk
+		 */
+		public long count() {
+			return coldCount + size - first;
+		}
+		
+		/**
+		 * @param row - number of a row
+		 * @return true if the row was in memory when the view was taken
+		 */
+		public boolean inMemory(int row) {
+			return row >= first && row < size;
+		}
+		
+		public int timestamp(int row) {
+			return SnippetStore.timestamp(c, row);
+		}
+		
+		public int origin(int row) {
+			return SnippetStore.origin(c, row);
+		}
+		
+		public String content(int row) {
+			return SnippetStore.content(c, row);
+		}
+		
+		/**
+		 * Visits every snippet in the order it arrived, reading evicted
+		 * snippets from disk first.
+		 * @param visitor - receives each snippet
+		 */
+		public void forEach(Visitor visitor) {
+			readCold(coldCount, visitor);
+			for (int row = first; row < size; row++) {
+				visitor.visit(timestamp(row), origin(row), content(row));
+			}
+		}
+	}
+	
+	/**
+	 * Reads rows in the order they arrived from a starting row, a slice at
+	 * a time, including rows appended after the cursor was opened.  The cold
+	 * file stays open between slices so a cursor moving through evicted rows
+	 * does not read them again, and a cursor that seeks to an evicted row starts
+	 * reading at the nearest recorded offset rather than at the start of the
+	 * file.  Used by one thread at a time.
+	 * @author joshuaplosz
+	 *
+	 */
+	public class Cursor {
+		private int row; // next row to read
+		private DataInputStream coldIn;
+		private long coldRow; // row the cold file is positioned at
+		private byte[] content = new byte[256];
+		
+		private Cursor(int row) {
+			this.row = row;
+		}
+		
+		/**
+		 * @return number of the next row to be read, every row below it has been read
+		 */
+		public int position() {
+			return row;
+		}
+		
+		/**
+		 * Moves the cursor to a row.
+		 * @param row - number of the next row to read
+		 */
+		public void seek(int row) {
+			this.row = row;
+		}
+		
+		/**
+		 * Visits up to max rows from the position of the cursor.  Rows that
+		 * were lost when they were evicted are skipped.
+		 * @param max - maximum number of rows visited
+		 * @param visitor - receives each snippet
+		 * @return number of rows visited, less than max once the newest row is read
+		 */
+		public int next(int max, Visitor visitor) {
+			View v = view();
+			int n = 0;
+			while (n < max && row < v.size) {
+				if (row >= v.first) {
+					visitor.visit(v.timestamp(row), v.origin(row), v.content(row));
+				} else if (row >= v.coldCount || !readCold(visitor)) {
+					row = v.first; // rows below first that are not in the cold file were lost
+					continue;
+				}
+				row++;
+				n++;
+			}
+			return n;
+		}
+		
+		/**
+		 * Visits the cold file's copy of the cursor's row.
+		 * @return false if the cold file could not be read
+		 */
+		private boolean readCold(Visitor visitor) {
+			try {
+				if (coldIn == null || coldRow > row || row - coldRow >= COLD_MARK) {
+					open(row / COLD_MARK);
+				}
+				for (; coldRow < row; coldRow++) {
+					skip(8);
+					skip(coldIn.readInt());
+				}
+				int timestamp = coldIn.readInt();
+				int origin = coldIn.readInt();
+				int length = coldIn.readInt();
+				if (length > content.length) {
+					content = new byte[Math.max(length, content.length * 2)];
+				}
+				coldIn.readFully(content, 0, length);
+				coldRow++;
+				visitor.visit(timestamp, origin, new String(content, 0, length, StandardCharsets.UTF_8));
+				return true;
+			} catch (IOException e) {
+				MyUtil.log("Unable to read evicted snippets from disk", 2);
+				e.printStackTrace();
+				close();
+				return false;
+			}
+		}
+		
+		/**
+		 * Opens the cold file at a recorded offset.
+		 * @param mark - number of the offset, the file is positioned at row mark * COLD_MARK
+		 */
+		private void open(int mark) throws IOException {
+			close();
+			ByteBuffer offset = ByteBuffer.allocate(8);
+			while (offset.hasRemaining()) {
+				if (coldMarks.read(offset, (long) mark * 8 + offset.position()) < 0) {
+					throw new EOFException();
+				}
+			}
+			FileInputStream file = new FileInputStream(coldFile);
+			try {
+				file.getChannel().position(offset.getLong(0));
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+			coldIn = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+			coldRow = (long) mark * COLD_MARK;
+		}
+		
+		private void skip(int bytes) throws IOException {
+			while (bytes > 0) {
+				int skipped = coldIn.skipBytes(bytes);
+				if (skipped <= 0) {
+					throw new EOFException();
+				}
+				bytes -= skipped;
+			}
+		}
+		
+		/**
+		 * Closes the cold file if it is open.  The cursor may still be used.
+		 */
+		public void close() {
+			try {
+				if (coldIn != null) {
+					coldIn.close();
+				}
+			} catch (IOException e) {
+				// nothing left to read
+			}
+			coldIn = null;
+		}
+	}
+	
+	/**
+	 * @param row - number of the first row to read
+	 * @return cursor positioned at the row
+	 */
+	public Cursor cursor(int row) {
+		return new Cursor(row);
+	}
+	
+	/**
+	 * @return number of rows appended, in memory, on disk or lost
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return a consistent view of every row in memory and on disk
+	 */
+	public synchronized View view() {
+		return new View(columns, first, size, coldCount);
+	}
+	
+	/**
+	 * @return number of the oldest row in memory, every row below it is evicted
+	 */
+	public int first() {
+		return first;
+	}
+	
+	/**
+	 * @return number of rows in memory
+	 */
+	public int memoryCount() {
+		return size - first;
+	}
+	
+	/**
+	 * @return number of rows evicted to disk
+	 */
+	public long coldCount() {
+		return coldCount;
+	}
+	
+	/**
+	 * @return content bytes of rows in memory
+	 */
+	public synchronized long memoryBytes() {
+		return memoryBytes;
+	}
+	
+	/**
+	 * @return number of rows evicted that could not be written to disk
+	 */
+	public synchronized long lost() {
+		return lost;
+	}
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed set of worker threads, each with its own queue.
+ * Tasks are assigned to a worker by hashing a key, so every task submitted
+ * with the same key (for example a peer's address) runs on the same thread
+ * in the order it was submitted, while tasks for different keys run in parallel.
+ * @author joshuaplosz
+ *
+ */
+public class StripedExecutor {
+	
+	private InboundQueue<Runnable>[] stripes;
+	private volatile boolean running = true;
+	private AtomicLong rejected = new AtomicLong(0);
+	
+	/**
+	 * Creates and starts the worker threads.
+	 * @param name - prefix for the worker thread names
+	 * @param numOfStripes - number of worker threads
+	 * @param capacity - maximum number of queued tasks per worker
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	StripedExecutor(String name, int numOfStripes, int capacity) {
+		stripes = new InboundQueue[numOfStripes];
+		for (int i = 0; i < numOfStripes; i++) {
+			stripes[i] = new InboundQueue<Runnable>(capacity);
+			Thread t = new Thread(new Worker(stripes[i]), name + " " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	/**
+	 * Runs tasks from a single stripe's queue until the executor is shut down
+	 * and the queue is empty.
+	 */
+	private class Worker implements Runnable {
+		private InboundQueue<Runnable> tasks;
+		
+		Worker(InboundQueue<Runnable> tasks) {
+			this.tasks = tasks;
+		}
+		
+		@Override
+		public void run() {
+			while (running || tasks.size() > 0) {
+				Runnable task = tasks.poll(1, TimeUnit.SECONDS);
+				if (task == null) {
+					continue;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					MyUtil.log("Error while handling task on " + Thread.currentThread().getName(), 2);
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Queues a task on the worker assigned to the provided key without blocking.
+	 * @param key - hash of the ordering key, tasks with equal keys run in order
+	 * @param task - task to run
+	 * @return false if the worker's queue is full and the task was rejected
+	 */
+	public boolean execute(int key, Runnable task) {
+		int h = key ^ (key >>> 16); // spread the high bits so similar keys use different stripes
+		if (!stripes[(h & 0x7fffffff) % stripes.length].offer(task)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return number of tasks waiting across all workers
+	 */
+	public long size() {
+		long size = 0;
+		for (InboundQueue<Runnable> stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * @return number of tasks rejected because a worker's queue was full
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	public int getNumOfStripes() {
+		return stripes.length;
+	}
+	
+	/**
+	 * Stops the workers once their queued tasks have run.
+	 */
+	public void shutdown() {
+		running = false;
+	}
+}
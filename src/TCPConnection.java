@@ -1,138 +1,529 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Contains a thread for TCP connection with registry.
+ * Manages the TCP connection with registry.
  * Interface for CommManager to communicate to registry.
+ *
+ * The socket is read and written without blocking by an event loop of
+ * the NodeHost.  Incoming bytes are split into lines and framed into
+ * requests on the loop, a request followed by a counted block of lines
+ * only once the whole block has arrived.  Requests are queued so the
+ * registry may pipeline several, and a dispatch task on the host's workers
+ * hands them to the CommManager in order without ever waiting for more
+ * input.  Outgoing messages are queued and the loop sends everything
+ * queued with one gathering write.
  * @author joshuaplosz
  *
  */
 public class TCPConnection {
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_GATHER = 64; // buffers sent by a single gathering write
+	private static final int MAX_CONNECT_ATTEMPTS = 8;
+	private static final long INITIAL_BACKOFF = 250; // milliseconds
+	private static final long MAX_BACKOFF = 8000; // milliseconds
+	private static final Request END = new Request("", null); // queued when a connection ends, compared by identity
+	private static final long DISPATCH_RETRY = 10; // milliseconds to wait when the workers are full
 	
 	private String ip;
 	private String port;
 	private String localIp;
 	private String localPort;
+	private String remoteIp;
+	private String remotePort;
 	private CommManager cm;
+	private NodeHost host;
+	private int registryId; // id of the registry's endpoint in the CommManager's PeerTable
+	private Charset charset = Charset.defaultCharset();
+	private AtomicLong connectFailures;
 	
-	private Socket registry;
-	private BufferedReader tcp_in;
-	private BufferedWriter tcp_out;
+	private volatile Session session;
 	
-	public boolean connectionOpen;
-
+	public volatile boolean connectionOpen;
+	private volatile boolean reconnecting = false;
+	
+	/**
+	 * Connects to the registry, retrying with backoff if it cannot be reached.
+	 * @param ip - IP address of registry
+	 * @param port - port number of registry
+	 * @param cm - manager that registry requests are handed to
+	 */
 	TCPConnection(String ip, String port, CommManager cm) {
 		this.ip = ip;
 		this.port = port;
 		this.cm = cm;
-		connectionOpen = true;
+		this.host = cm.getHost();
+		this.registryId = cm.getPeers().intern(ip, port);
+		this.connectFailures = cm.getMetrics().counter("registry.connect.failed");
+		cm.getMetrics().gauge("registry.write.pending", () -> {
+			Session s = session;
+			return s == null ? 0 : s.writes.size();
+		});
+		
+		connectWithBackoff();
+	}
 	
+	public String getLocalIp() {
+		return localIp;
+	}
+	
+	public String getLocalTcpPort() {
+		return localPort;
+	}
+	
+	/**
+	 * Opens a new connection to the registry.
+	 * @return connection with its socket in non-blocking mode
+	 * @throws IOException if the registry could not be reached
+	 */
+	private Session connect() throws IOException {
+		SocketChannel channel = SocketChannel.open();
 		try {
-			registry = new Socket(InetAddress.getByName(ip), Integer.parseInt(port));
-			localIp = registry.getLocalAddress().getHostAddress();
-			localPort = String.valueOf(registry.getLocalPort());
-			
-			tcp_in 	= new BufferedReader(new InputStreamReader(registry.getInputStream()));
-			tcp_out	= new BufferedWriter(new OutputStreamWriter(registry.getOutputStream()));
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(new InetSocketAddress(InetAddress.getByName(ip), Integer.parseInt(port)));
+			channel.configureBlocking(false);
+			return new Session(channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Tries to connect to the registry up to MAX_CONNECT_ATTEMPTS times.
+	 * The wait between attempts doubles after each failure, up to
+	 * MAX_BACKOFF, and is jittered so many nodes do not retry in step.
+	 * @return true if a connection was established
+	 */
+	private boolean connectWithBackoff() {
+		long backoff = INITIAL_BACKOFF;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				Session s = connect();
+				InetSocketAddress local = (InetSocketAddress) s.channel.getLocalAddress();
+				InetSocketAddress remote = (InetSocketAddress) s.channel.getRemoteAddress();
+				localIp = local.getAddress().getHostAddress();
+				localPort = String.valueOf(local.getPort());
+				remoteIp = remote.getAddress().getHostAddress();
+				remotePort = String.valueOf(remote.getPort());
+				session = s;
+				connectionOpen = true;
+				
+				MyUtil.log("TCP connection with registry established.");
+				MyUtil.log("My TCP port " + getLocalTcpPort());
+				return true;
 			
-			MyUtil.log("TCP connection with registry established.");
-			MyUtil.log("My TCP port " + getLocalTcpPort());
+			} catch (NumberFormatException e) {
+				MyUtil.log("Invalid registry port: " + port, 2);
+				return false;
+			} catch (IOException e) {
+				connectFailures.incrementAndGet();
+				if (attempt >= MAX_CONNECT_ATTEMPTS) {
+					MyUtil.log("Unable to establish TCP connection with registry with ip: " + ip + " and port: " + port, 2);
+					e.printStackTrace();
+					return false;
+				}
+			}
 			
-		} catch (NumberFormatException | IOException e) {
-			MyUtil.log("Unable to establish TCP connection with registry with ip: " + ip + " and port: " + port, 2);
-			e.printStackTrace();
+			long wait = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+			MyUtil.log("Registry connection attempt " + attempt + " failed, retrying in " + wait + " ms", 2);
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
 		}
 	}
 	
-	public String getLocalIp() {
-		return localIp;
+	/**
+	 * Reconnects to the registry on a separate thread so the caller is
+	 * not held up while the registry is unreachable.  Any open connection
+	 * is closed once its queued messages are sent.
+	 */
+	public void reconnect() {
+		reconnecting = true;
+		close();
+		Thread rc = new Thread(() -> {
+			boolean connected = connectWithBackoff();
+			reconnecting = false;
+			if (connected) {
+				listen();
+			} else {
+				cm.registryClosed();
+			}
+		}, "Registry Reconnect");
+		rc.start();
 	}
 	
-	public String getLocalTcpPort() {
-		return localPort;
+	/**
+	 * A request from the registry with the block of lines that followed it.
+	 */
+	private static class Request {
+		final String line;
+		final String[] block; // null if the request has no block
+		
+		Request(String line, String[] block) {
+			this.line = line;
+			this.block = block;
+		}
 	}
 	
 	/**
-	 * Thread for listening for requests from registry.
+	 * A single connection with the registry, served by an event loop.
 	 * @author joshuaplosz
 	 *
 	 */
-	private class RegistryListener implements Runnable {
+	private class Session implements EventLoop.Handler {
+	
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private volatile SelectionKey key;
+		private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+		private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+		private final AtomicBoolean dispatching = new AtomicBoolean(false);
+		private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private byte[] line = new byte[256]; // bytes of a line not yet terminated
+		private int lineLength = 0;
+		// request waiting for its block, only used on the loop
+		private String blockRequest = null;
+		private String[] block;
+		private int blockCount = -1; // lines in the block, -1 until the count has arrived
+		private int blockLength = 0;
+		private volatile boolean closing = false;
+		private boolean ended = false; // only used on the loop
+		
+		Session(SocketChannel channel) {
+			this.channel = channel;
+			this.loop = host.nextLoop();
+		}
+		
+		/**
+		 * Registers the socket with the loop and sends anything already queued.
+		 */
+		private void start() throws IOException {
+			key = loop.register(channel, SelectionKey.OP_READ, this);
+			loop.execute(this::flushOrEnd);
+		}
 		
+		/**
+		 * Reads and writes the socket until the connection ends or is
+		 * closed with nothing left to send.
+		 */
 		@Override
-		public void run() {
-			while (connectionOpen) {
-				String line = readLineFromRegistry();
-				cm.parse(line, ip, port);
+		public void ready(SelectionKey key) {
+			try {
+				if (key.isReadable() && !read()) {
+					end();
+					return;
+				}
+			} catch (IOException e) {
+				MyUtil.log("Error on tcp connection with registry.", 2);
+				e.printStackTrace();
+				end();
+				return;
+			}
+			flushOrEnd();
+		}
+		
+		/**
+		 * Sends what is queued, then ends the connection if it is closing and
+		 * everything has been sent.  Runs on the loop.
+		 */
+		private void flushOrEnd() {
+			if (ended || key == null) {
+				return;
+			}
+			try {
+				flush();
+			} catch (IOException e) {
+				MyUtil.log("Error on tcp connection with registry.", 2);
+				e.printStackTrace();
+				end();
+				return;
+			}
+			if (closing && writes.isEmpty()) {
+				end();
+			}
+		}
+		
+		/**
+		 * Reads what is available on the socket and frames each complete line.
+		 * @return false if the registry ended the connection
+		 */
+		private boolean read() throws IOException {
+			int n;
+			while ((n = channel.read(in)) > 0) {
+				in.flip();
+				while (in.hasRemaining()) {
+					byte b = in.get();
+					if (b == '\n') {
+						int length = lineLength;
+						if (length > 0 && line[length - 1] == '\r') {
+							length--;
+						}
+						frame(new String(line, 0, length, charset));
+						lineLength = 0;
+					} else {
+						if (lineLength == line.length) {
+							line = Arrays.copyOf(line, line.length * 2);
+						}
+						line[lineLength++] = b;
+					}
+				}
+				in.clear();
+			}
+			dispatch();
+			return n >= 0;
+		}
+		
+		/**
+		 * Queues a line as a request, or adds it to the block the request
+		 * before it is waiting for and queues that request once the block is
+		 * complete.  The count is not trusted, the block grows as lines
+		 * arrive.  Runs on the loop.
+		 * @param received - line received from the registry
+		 */
+		private void frame(String received) {
+			if (blockRequest == null) {
+				if (CommManager.hasBlock(received)) {
+					blockRequest = received;
+					blockCount = -1;
+				} else {
+					requests.add(new Request(received, null));
+				}
+				return;
+			}
+			
+			if (blockCount < 0) {
+				try {
+					blockCount = Integer.parseInt(received.trim());
+				} catch (NumberFormatException e) {
+					blockCount = -1;
+				}
+				if (blockCount < 0) {
+					MyUtil.log("Unusual request", 2);
+					blockRequest = null;
+					return;
+				}
+				block = new String[Math.min(blockCount, 1024)];
+				blockLength = 0;
+			} else {
+				if (blockLength == block.length) {
+					block = Arrays.copyOf(block, (int) Math.min(blockCount, 2L * blockLength));
+				}
+				block[blockLength++] = received;
+			}
+			if (blockLength == blockCount) {
+				requests.add(new Request(blockRequest, block));
+				blockRequest = null;
+				block = null;
+			}
+		}
+		
+		/**
+		 * Sends queued messages with gathering writes.  Write interest is
+		 * only registered while the socket cannot take everything queued.
+		 */
+		private void flush() throws IOException {
+			ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+			while (true) {
+				int n = 0;
+				for (ByteBuffer b : writes) {
+					if (n == MAX_GATHER) break;
+					batch[n++] = b;
+				}
+				if (n == 0) {
+					writeScheduled.set(false);
+					if (writes.isEmpty()) {
+						key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					writeScheduled.set(true);
+					continue;
+				}
+				
+				channel.write(batch, 0, n);
+				for (int i = 0; i < n; i++) {
+					if (batch[i].hasRemaining()) {
+						// socket buffer is full, continue when it is writable
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					writes.poll();
+				}
+			}
+		}
+		
+		/**
+		 * Queues a message and hands the loop a flush if one is not already due.
+		 */
+		private void send(ByteBuffer msg) {
+			writes.add(msg);
+			if (writeScheduled.compareAndSet(false, true)) {
+				loop.execute(this::flushOrEnd);
+			}
+		}
+		
+		private void close() {
+			closing = true;
+			loop.execute(this::flushOrEnd);
+		}
+		
+		private void end() {
+			if (ended) {
+				return;
+			}
+			ended = true;
+			if (!closing) {
+				MyUtil.log("Registry ended the tcp connection.", 2);
+			}
+			try {
+				if (key != null) {
+					key.cancel();
+				}
+				channel.close();
+			} catch (IOException e) {
+				MyUtil.log("Error when closing tcp socket to registry.", 2);
+				e.printStackTrace();
+			}
+			if (blockRequest != null) {
+				MyUtil.log("Registry ended the tcp connection before the rest of a request.", 2);
+			}
+			requests.add(END);
+			dispatch();
+			if (session == this) {
+				connectionOpen = false;
+				if (!reconnecting) {
+					cm.registryClosed();
+				}
+			}
+		}
+		
+		/**
+		 * Hands queued requests to the workers unless they are already being handled.
+		 */
+		private void dispatch() {
+			if (requests.isEmpty() || !dispatching.compareAndSet(false, true)) {
+				return;
+			}
+			if (!host.getWorkers().execute(registryId + cm.getNodeId() * 0x9E3779B9, this::handleLines)) {
+				dispatching.set(false);
+				host.getScheduler().schedule(this::dispatch, DISPATCH_RETRY, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		/**
+		 * Hands requests from the registry to the CommManager in the order
+		 * they were received.  Runs on a worker.
+		 */
+		private void handleLines() {
+			while (true) {
+				Request request = requests.poll();
+				if (request == null) {
+					dispatching.set(false);
+					// a request queued after the poll above would otherwise wait for the next read
+					if (requests.isEmpty() || !dispatching.compareAndSet(false, true)) {
+						return;
+					}
+					continue;
+				}
+				if (request == END) {
+					requests.add(END); // stays dispatching, nothing follows the end
+					return;
+				}
+				if (request.line.isEmpty()) {
+					continue;
+				}
+				try {
+					cm.parse(request.line, request.block, registryId);
+				} catch (RuntimeException e) {
+					MyUtil.log("Unable to handle registry request: " + request.line, 2);
+					e.printStackTrace();
+				}
 			}
 		}
 	}
 	
 	/**
-	 * Method used to start a new RegistryListener thread.
+	 * Starts serving the current connection on the host's event loop.
 	 */
 	public void listen() {
-		Thread rl = new Thread(new RegistryListener());
-		rl.start();
-	}
-
-	/**
-	 * Used what parsing a registry request requires additional information.
-	 * @return next line read from registry as a string
-	 */
-	public String readLineFromRegistry() {
-		String line = "";
+		Session s = session;
+		if (s == null) {
+			return;
+		}
 		try {
-			line = tcp_in.readLine();
-			MyUtil.log(line, 2);
+			s.start();
 		} catch (IOException e) {
-			MyUtil.log("Unable to ready line from registry.", 2);
+			MyUtil.log("Unable to listen on tcp connection with registry.", 2);
 			e.printStackTrace();
 		}
-		return line;
 	}
-
+	
 	/**
-	 * Sends a message to registry over TCP connection.
+	 * Queues a message to be sent to registry over TCP connection.
 	 * @param msg - message to be sent to registry as a string
 	 */
 	public void toRegistry(String msg) {
 		if (msg != null) {
-			try {
-				tcp_out.write(msg);
-				tcp_out.flush();
-			} catch (IOException e) {
-				MyUtil.log("Error when sending tcp message to registry.", 2);
-				e.printStackTrace();
-			}		
+			toRegistry(msg.getBytes(charset));
+		}
+	}
+	
+	/**
+	 * Queues an already encoded block of bytes to be sent to the registry.
+	 * @param msg - encoded message to be sent to registry
+	 */
+	public void toRegistry(byte[] msg) {
+		Session s = session;
+		if (msg == null) {
+			return;
+		}
+		if (s == null || !s.channel.isOpen()) {
+			MyUtil.log("Error when sending tcp message to registry.", 2);
+			return;
 		}
+		s.send(ByteBuffer.wrap(msg));
 	}
 	
 	/**
-	 * Closes TCP buffers and socket. Sets the connection flag to closed.
+	 * Closes the connection once every queued message has been sent.
 	 */
 	public void close() {
-		try {
-			tcp_in.close();
-			tcp_out.close();
-			registry.close();
-			connectionOpen = false;
-		} catch (IOException e) {
-			MyUtil.log("Error when closing tcp streams/socket to registry.", 2);
-			e.printStackTrace();
+		Session s = session;
+		if (s != null) {
+			s.close();
 		}
 	}
 	
+	/**
+	 * @return true while connected to the registry or trying to reconnect
+	 */
+	public boolean isActive() {
+		return connectionOpen || reconnecting;
+	}
+	
 	public String getIp() {
-		return registry.getInetAddress().getHostAddress();
+		return remoteIp;
 	}
 	
 	public String getPort() {
-		return String.valueOf(registry.getPort());
+		return remotePort;
 	}
 }
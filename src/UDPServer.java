@@ -1,167 +1,609 @@
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.UnknownHostException;
-import java.util.Scanner;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.net.MalformedURLException;
 
 /**
- * Contains two threaded classes for UDP communication.
- * One that listens for incoming messages from peers (PeerListener) and
- * one that sends outgoing messages to a peer (PeerReplier).
- * Provides an interface for CommManager to use threaded 
+ * UDP communication with peers.  The node's sockets are served by event
+ * loops of the NodeHost: received datagrams are handed to the host's
+ * workers, and outgoing datagrams are sent by the OutboundScheduler on
+ * the loop of the first socket.
+ * With a MulticastGroup the node also joins the group on a socket of its
+ * own, and datagrams sent to the group leave from the first socket so
+ * peers see our usual address as the sender.  Peers we receive group
+ * datagrams from are members: a single datagram to the group reaches them.
+ * Provides an interface for CommManager to use these
  * communication channels.
  * @author joshuaplosz
  *
  */
 public class UDPServer {
 	
+	public static final int MAX_DATAGRAM = 1024; // largest payload a peer is guaranteed to receive whole
+	private static final int HEADROOM = 4; // extra receive space for peers that send slightly oversized datagrams
+	public static final int RECEIVE_BUFFER_SIZE = MAX_DATAGRAM + HEADROOM;
+	
 	private int port;
-	private DatagramSocket socket;
-	private byte[] buff = new byte[1028];
+	private DatagramChannel channel; // first socket, also used for sending
+	private static final int MAX_READS = 64; // datagrams read from a socket before other sockets on the loop get a turn
+	// file in the user's home directory, not the shared temp directory other users can write to
+	private static final String VISIBLE_IP_CACHE = ".twitter-ish-visible-ip";
+	private static final long VISIBLE_IP_TTL = 60 * 60 * 1000; // 1 hour
+	private static final int VISIBLE_IP_TIMEOUT = 2000; // milliseconds for each of connect and read
+	private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024; // requested kernel receive buffer size
 	
-	private String peerIp;
-	private String peerPort;
+	// buffers that datagrams are received into, recycled once the datagram is handled
+	private BufferPool receivePool;
+	// sockets sharing the UDP port, each served by one of the host's event loops
+	private DatagramChannel[] channels;
+	private EventLoop[] loops;
+	private volatile SelectionKey sendKey; // key of the first socket, used to wait until it is writable
+	// workers that decode and handle received datagrams, ordered per peer
+	private StripedExecutor workers;
+	// added to peer ids so peers of different nodes on the host are spread over the workers
+	private int stripeSalt;
+	// buffers that compressed payloads are inflated into
+	private BufferPool inflatePool = new BufferPool(Reassembler.MAX_PAYLOAD, 4);
+	private Reassembler reassembler = new Reassembler();
 	
 	private CommManager cm;
+	private PeerTable peers;
+	private RateLimiter limiter;
+	// queues outgoing datagrams by priority and sends them
+	private OutboundScheduler outbound;
+	
+	private AtomicLong receivedCount;
+	private AtomicLong queueDrops;
+	private AtomicLong truncated;
+	private AtomicLong unknownDrops;
+	
+	// socket joined to the multicast group, null if only unicast is used
+	private DatagramChannel groupChannel;
+	private int groupId = PeerTable.UNKNOWN; // id of the group address in the PeerTable
+	// ids of peers heard from through the group
+	private Set<Integer> groupMembers = ConcurrentHashMap.newKeySet();
+	// addresses of the interface our own group datagrams are looped back from
+	private List<InetAddress> groupLocalAddresses = Collections.emptyList();
+	private AtomicLong groupReceived;
 	
-	public boolean connectionOpen = true;
+	public volatile boolean connectionOpen = true;
 	
-	UDPServer(CommManager cm) {
+	/**
+	 * @param cm - manager that received messages are handed to
+	 * @param host - event loops, workers and buffers shared with other nodes
+	 * @param receiveShards - number of sockets to receive on.  More than one
+	 * 		binds every socket to the same port with SO_REUSEPORT so the kernel 
+	 * 		spreads incoming peers across them, and across the host's event loops.
+	 * @param limiter - limits on the datagrams accepted from peers, checked before a datagram is queued
+	 * @param bulkRate - bytes per second catch-up traffic may send, 0 for no cap
+	 * @param multicast - group to send gossip and new snippets to, null for unicast only
+	 */
+	UDPServer(CommManager cm, NodeHost host, int receiveShards, RateLimiter limiter, long bulkRate, MulticastGroup multicast) {
 		this.cm = cm;
+		this.limiter = limiter;
+		this.workers = host.getWorkers();
+		this.receivePool = host.getReceivePool();
+		this.stripeSalt = cm.getNodeId() * 0x9E3779B9;
+		this.peers = cm.getPeers();
+		
+		if (receiveShards > 1 && !reusePortSupported()) {
+			MyUtil.log("SO_REUSEPORT not supported, receiving on a single socket", 2);
+			receiveShards = 1;
+		}
+		loops = new EventLoop[receiveShards];
+		for (int i = 0; i < receiveShards; i++) {
+			loops[i] = host.nextLoop();
+		}
+		this.outbound = new OutboundScheduler(this::send, bulkRate, loops[0], host.getScheduler());
+		
+		Metrics metrics = cm.getMetrics();
+		receivedCount = metrics.counter("udp.received");
+		queueDrops = metrics.counter("udp.queue.dropped");
+		unknownDrops = metrics.counter("udp.unknown.dropped");
+		truncated = metrics.counter("udp.truncated");
+		metrics.gauge("udp.queue.size", () -> workers.size());
+		metrics.gauge("udp.limited.peer", limiter::getPeerDrops);
+		metrics.gauge("udp.limited.global", limiter::getGlobalDrops);
+		for (OutboundScheduler.Priority p : OutboundScheduler.Priority.values()) {
+			metrics.gauge("udp.send.queued." + p.name().toLowerCase(), () -> outbound.size(p));
+		}
+		metrics.gauge("udp.kernel.rcvbuf_errors", () -> readKernelUdpStat("RcvbufErrors"));
+		metrics.gauge("udp.kernel.in_errors", () -> readKernelUdpStat("InErrors"));
+		
+		// sockets of a node in a group use the group's address family so the group's socket options apply
+		ProtocolFamily family = null;
+		if (multicast != null) {
+			family = (multicast.group.getAddress() instanceof Inet4Address) ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6;
+		}
 
 		try {
-			socket = new DatagramSocket();
-			socket.setSoTimeout(10 * 1000);
+			channels = new DatagramChannel[receiveShards];
+			for (int i = 0; i < receiveShards; i++) {
+				DatagramChannel c = (family == null) ? DatagramChannel.open() : DatagramChannel.open(family);
+				if (receiveShards > 1) {
+					c.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				c.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+				c.configureBlocking(false);
+				// the first socket picks the port, the rest join it
+				c.bind(new InetSocketAddress(i == 0 ? 0 : port));
+				if (i == 0) {
+					port = ((InetSocketAddress) c.getLocalAddress()).getPort();
+				}
+				channels[i] = c;
+			}
+			channel = channels[0];
+			
 			MyUtil.log("UDP server established.");
-			MyUtil.log("My UDP port " + getLocalUdpPort());
-		} catch (SocketException e) {
+			MyUtil.log("My UDP port " + getLocalUdpPort() + " receiving on " + receiveShards + " socket(s)");
+		} catch (IOException e) {
 			MyUtil.log("Unable to establish UDP socket", 2);
 		}
+		
+		if (multicast != null) {
+			groupReceived = metrics.counter("multicast.received");
+			metrics.gauge("multicast.members", () -> groupMembers.size());
+			joinGroup(multicast, family);
+		}
+	}
+	
+	/**
+	 * Joins a multicast group on a socket bound to the group's port, and
+	 * sends to the group from the first socket.  Loopback is enabled so
+	 * other nodes on this machine receive our group datagrams too.  If the
+	 * group cannot be joined only unicast is used.
+	 * @param multicast - group to join
+	 * @param family - address family of the group
+	 */
+	private void joinGroup(MulticastGroup multicast, ProtocolFamily family) {
+		DatagramChannel c = null;
+		try {
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicast.networkInterface);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			
+			c = DatagramChannel.open(family);
+			c.setOption(StandardSocketOptions.SO_REUSEADDR, true); // every node on this machine binds the group port
+			c.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+			c.configureBlocking(false);
+			c.bind(new InetSocketAddress(multicast.group.getPort()));
+			c.join(multicast.group.getAddress(), multicast.networkInterface);
+			
+			groupChannel = c;
+			groupLocalAddresses = Collections.list(multicast.networkInterface.getInetAddresses());
+			groupId = peers.intern(multicast.group);
+			MyUtil.log("Joined multicast group " + multicast, 2);
+		} catch (IOException | UnsupportedOperationException e) {
+			MyUtil.log("Unable to join multicast group " + multicast + ", using unicast only: " + e.getMessage(), 2);
+			if (c != null) {
+				try {
+					c.close();
+				} catch (IOException ce) {
+					// never joined
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return id of the multicast group in the PeerTable, PeerTable.UNKNOWN if not in a group
+	 */
+	public int getGroupId() {
+		return groupId;
 	}
 	
+	/**
+	 * @param peer - id of a peer
+	 * @return true if the peer has been heard from through the multicast group
+	 */
+	public boolean isGroupMember(int peer) {
+		return groupMembers.contains(peer);
+	}
+	
+	/**
+	 * Stops counting on the group to reach a peer until it is heard from through it again.
+	 * @param peer - id of a peer that failed to acknowledge a snippet
+	 */
+	public void leftGroup(int peer) {
+		groupMembers.remove(peer);
+	}
+	
+	/**
+	 * Finds the address peers outside the local network reach us at.
+	 * A discovered address is cached on disk for VISIBLE_IP_TTL so
+	 * restarts do not wait on the lookup service.  If the lookup fails
+	 * an expired cached address is used rather than none.
+	 * @return visible IP address as a string, empty if unknown
+	 */
 	public String getVisibleIp() {
+		File cache = new File(System.getProperty("user.home"), VISIBLE_IP_CACHE);
+		String cached = readVisibleIpCache(cache);
+		if (cached != null && System.currentTimeMillis() - cache.lastModified() < VISIBLE_IP_TTL) {
+			MyUtil.log("UDP address for remote registry: " + cached + " (cached)", 2);
+			return cached;
+		}
+		
 		try {
-			URL checkMyIp = new URL("http://checkip.amazonaws.com");
-			BufferedReader sc = new BufferedReader(new InputStreamReader(checkMyIp.openStream()));
+			URLConnection checkMyIp = new URL("http://checkip.amazonaws.com").openConnection();
+			checkMyIp.setConnectTimeout(VISIBLE_IP_TIMEOUT);
+			checkMyIp.setReadTimeout(VISIBLE_IP_TIMEOUT);
+			BufferedReader sc = new BufferedReader(new InputStreamReader(checkMyIp.getInputStream()));
 			String externalIp = sc.readLine();
 			sc.close();
-			MyUtil.log("UDP address for remote registry: " + externalIp, 2);
-			return externalIp;
+			if (externalIp != null && !externalIp.trim().isEmpty()) {
+				externalIp = externalIp.trim();
+				MyUtil.log("UDP address for remote registry: " + externalIp, 2);
+				Files.write(cache.toPath(), externalIp.getBytes());
+				return externalIp;
+			}
 			
 		} catch (MalformedURLException e) {
-			MyUtil.log("Bad URL when checking external IP using https://api.my-ip.io/ip", 2);
+			MyUtil.log("Bad URL when checking external IP using http://checkip.amazonaws.com", 2);
 		} catch (IOException e) {
-			MyUtil.log("Error establishing input stream when checking external IP using https://api.my-ip/io/ip", 2);
+			MyUtil.log("Error establishing input stream when checking external IP using http://checkip.amazonaws.com", 2);
 			e.printStackTrace();
 		}
+		if (cached != null) {
+			MyUtil.log("UDP address for remote registry: " + cached + " (expired cache)", 2);
+			return cached;
+		}
 		return "";
 
 	}
 	
+	/**
+	 * @param cache - file holding a previously discovered visible IP
+	 * @return the cached address, null if there is none
+	 */
+	private String readVisibleIpCache(File cache) {
+		try {
+			String ip = new String(Files.readAllBytes(cache.toPath())).trim();
+			// only a numeric address is trusted, a host name would be looked up
+			return ip.matches("[0-9.]+|[0-9a-fA-F:]+") ? ip : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
 	public String getLocalUdpPort() {
-		return String.valueOf(socket.getLocalPort());
+		return String.valueOf(port);
 	}
 	
 	/**
-	 * Thread that waits for a DatagramPacket to arrive, and 
-	 * sends the packet as a string to the CommManager
-	 * to be parsed.
+	 * Reads datagrams from one socket on its event loop, and queues each
+	 * on the worker assigned to the sending peer.  Nothing else is done on
+	 * the loop so the socket is drained as fast as datagrams arrive.  The
+	 * kernel delivers every datagram from a peer to the same socket, so each
+	 * peer's datagrams are queued, and handled, in order.  The receiver of
+	 * the group socket records each sender as a group member and ignores
+	 * our own datagrams looped back by the group.
 	 * @author joshuaplosz
 	 *
 	 */
-	private class PeerReceiver implements Runnable {
+	private class Receiver implements EventLoop.Handler {
+		private DatagramChannel channel;
+		private boolean group;
+		
+		Receiver(DatagramChannel channel, boolean group) {
+			this.channel = channel;
+			this.group = group;
+		}
 
 		@Override
-		public void run() {
-			while (connectionOpen) {
-				DatagramPacket packet = new DatagramPacket(buff, buff.length);
-				try {
-					socket.receive(packet);
-					peerIp = packet.getAddress().toString().substring(1);
-					peerPort = String.valueOf(packet.getPort());
+		public void ready(SelectionKey key) throws IOException {
+			if (key.isWritable()) {
+				key.interestOps(SelectionKey.OP_READ);
+				outbound.resume();
+			}
+			if (!key.isReadable()) {
+				return;
+			}
+			for (int i = 0; i < MAX_READS && connectionOpen; i++) {
+				byte[] buff = receivePool.acquire();
+				ByteBuffer in = ByteBuffer.wrap(buff);
+				InetSocketAddress from = (InetSocketAddress) channel.receive(in);
+				if (from == null) {
+					receivePool.release(buff);
+					return;
+				}
+				receivedCount.incrementAndGet();
+				if (in.position() == buff.length) {
+					truncated.incrementAndGet(); // datagram may have been larger than the buffer
+				}
 					
-					String msg = new String(packet.getData(), 0, packet.getLength());
-					MyUtil.log("udp message received");
-					cm.parse(msg, peerIp, peerPort);
+				if (group) {
+					if (from.getPort() == port && groupLocalAddresses.contains(from.getAddress())) {
+						receivePool.release(buff);
+						continue; // our own datagram
+					}
+					groupReceived.incrementAndGet();
+				}
 					
-				} catch (SocketTimeoutException e) {
-					// ignore
-					listen();
-				} catch (IOException e) {
-					MyUtil.log("Unable to receive packet from UDP socket.", 2);					
+				// an endpoint is only interned once a worker has found that its datagram introduces it
+				int peer = peers.find(from);
+				// drop floods before any work is spent decoding them, senders without
+				// an id share one bucket so rotating source ports gains nothing
+				if (peer == PeerTable.UNKNOWN ? !limiter.allowUnknown() : !limiter.allow(peer)) {
+					receivePool.release(buff);
+					continue;
+				}
+				InboundQueue.Inbound inbound = new InboundQueue.Inbound(buff, in.position(), peer);
+				boolean fromGroup = group;
+				Runnable task;
+				if (peer == PeerTable.UNKNOWN) {
+					task = () -> processUnknown(inbound, from, fromGroup);
+				} else {
+					if (group) {
+						groupMembers.add(peer);
+					}
+					task = () -> process(inbound);
+				}
+				// striped by address whether or not the sender is known yet, so a
+				// peer's first datagrams are not overtaken by those after it is interned
+				if (!workers.execute(from.hashCode() + stripeSalt, task)) {
+					queueDrops.incrementAndGet();
+					receivePool.release(buff);
 				}
 			}
 		}
 	}
 	
 	/**
-	 * Method used to start a new PeerListener thread
+	 * Interns the sender of a datagram from an endpoint that is not yet known
+	 * if the datagram introduces it, then handles it as any other.  Other
+	 * messages, fragments and compressed payloads are only sent by endpoints
+	 * that are known by then, so they are dropped.
+	 * @param in - received datagram
+	 * @param from - sender of the datagram
+	 * @param group - true if the datagram was received through the multicast group
 	 */
-	public void listen() {
-		Thread t = new Thread(new PeerReceiver(), "UDP Server Thread");
-		t.start();
+	private void processUnknown(InboundQueue.Inbound in, InetSocketAddress from, boolean group) {
+		if (Reassembler.isFragment(in.buff, in.length) || PayloadCodec.isCompressed(in.buff, in.length)
+				|| !cm.isIntroduction(new String(in.buff, 0, in.length))) {
+			unknownDrops.incrementAndGet();
+			receivePool.release(in.buff);
+			return;
+		}
+		in.peer = peers.intern(from);
+		if (in.peer == PeerTable.UNKNOWN) {
+			unknownDrops.incrementAndGet();
+			receivePool.release(in.buff);
+			return;
+		}
+		if (group) {
+			groupMembers.add(in.peer);
+		}
+		process(in);
 	}
 	
 	/**
-	 * Thread that sends a message to a peer via DatagramPacket if the 
-	 * DatagramSocket is already connected and has not been closed.
-	 * @author joshuaplosz
-	 *
+	 * Handles a received datagram on a worker thread and returns 
+	 * its buffer to the pool.
+	 * @param in - received datagram
 	 */
-	private class PeerSender implements Runnable {
-		private byte[] out_msg = new byte[1024];
-		private int out_port;
-		private InetAddress out_ip;
-		private String out_ip_string;
+	private void process(InboundQueue.Inbound in) {
+		NodeEvents.DatagramReceive event = new NodeEvents.DatagramReceive();
+		event.begin();
+		long picked = System.nanoTime();
+		try {
+			MyUtil.log("udp message received");
+			deliver(in.buff, in.length, in.peer);
+		} finally {
+			receivePool.release(in.buff);
+		}
 		
-		PeerSender (String msg, String ip, String port) {
-			out_ip_string = ip;
-			out_msg = msg.getBytes();
-			out_port = Integer.parseInt(port);
-			try {
-				out_ip = InetAddress.getByName(ip);
-			} catch (UnknownHostException e) {
-				MyUtil.log("Unable to find host at IP: " + ip, 2);
-			}
+		event.end();
+		if (event.shouldCommit()) {
+			event.peer = in.peer;
+			event.size = in.length;
+			event.queueWait = picked - in.received;
+			event.commit();
 		}
+	}
+	
+	/**
+	 * Decodes a received datagram or reassembled payload and hands each
+	 * message it contains to the CommManager to be parsed.
+	 * @param data - received bytes
+	 * @param length - number of valid bytes in data
+	 * @param peer - id of the sending peer
+	 */
+	private void deliver(byte[] data, int length, int peer) {
+		if (Reassembler.isFragment(data, length)) {
+			reassembler.accept(peer, data, length, 
+					(payload, payloadLength) -> deliver(payload, payloadLength, peer));
 		
-		@Override
-		public void run() {
-			DatagramPacket packet = new DatagramPacket(out_msg, out_msg.length, out_ip, out_port);
-			try {
-				MyUtil.log("sending packet to " + out_ip + ":" + out_port + " with msg: " + new String(out_msg, "UTF-8"));
-				socket.send(packet);
-			} catch (IOException e) {
-				MyUtil.log("Peer " + out_ip.toString() + ":" + out_port + " no longer available", 2);
-				cm.drop(out_ip_string, String.valueOf(out_port));
+		} else if (PayloadCodec.isCompressed(data, length)) {
+			String payload = PayloadCodec.decompress(data, length, inflatePool);
+			if (payload != null) {
+				cm.parseBundle(payload.split("\n"), peer);
+			}
+		
+		} else {
+			String msg = new String(data, 0, length);
+			cm.parse(msg, peer);
+		}
+	}
+	
+	/**
+	 * Registers each socket with its event loop so received datagrams are handed to the workers
+	 */
+	public void listen() {
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				SelectionKey key = loops[i].register(channels[i], SelectionKey.OP_READ, new Receiver(channels[i], false));
+				if (i == 0) {
+					sendKey = key;
+				}
+			}
+			if (groupChannel != null) {
+				loops[0].register(groupChannel, SelectionKey.OP_READ, new Receiver(groupChannel, true));
+			}
+		} catch (IOException e) {
+			MyUtil.log("Unable to listen on UDP socket", 2);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return true if sockets on this platform can share a port with SO_REUSEPORT
+	 */
+	private static boolean reusePortSupported() {
+		try (DatagramSocket s = new DatagramSocket(null)) {
+			return s.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Reads a system wide UDP statistic kept by the kernel, such as datagrams
+	 * dropped because a socket's receive buffer was full.  Only available on Linux.
+	 * @param name - column name from the "Udp:" rows of /proc/net/snmp
+	 * @return value of the statistic, or -1 if it is not available
+	 */
+	private static long readKernelUdpStat(String name) {
+		try (BufferedReader snmp = new BufferedReader(new FileReader("/proc/net/snmp"))) {
+			String line;
+			String[] header = null;
+			while ((line = snmp.readLine()) != null) {
+				if (!line.startsWith("Udp:")) continue;
+				if (header == null) {
+					header = line.split(" ");
+					continue;
+				}
+				String[] values = line.split(" ");
+				for (int i = 1; i < header.length && i < values.length; i++) {
+					if (header[i].equals(name)) return Long.parseLong(values[i]);
+				}
+				return -1;
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not available on this platform
+		}
+		return -1;
+	}
+	
+	/**
+	 * Sends a datagram to a peer on the OutboundScheduler's event loop.
+	 * A peer that can no longer be reached is dropped.
+	 * @param data - datagram to be sent
+	 * @param peer - id of destination peer
+	 * @return false if the socket's send buffer is full, the OutboundScheduler
+	 * 		is resumed once the socket is writable
+	 */
+	private boolean send(byte[] data, int peer) {
+		InetSocketAddress out_addr = peers.address(peer);
+		try {
+			MyUtil.log("sending packet to " + out_addr + " with " + data.length + " bytes");
+			if (channel.send(ByteBuffer.wrap(data), out_addr) == 0) {
+				SelectionKey key = sendKey;
+				if (key == null || !key.isValid()) {
+					return true; // not listening, the datagram is dropped
+				}
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return false;
+			}
+		} catch (IOException e) {
+			if (connectionOpen) {
+				MyUtil.log("Peer " + out_addr + " no longer available", 2);
+				cm.drop(peer);
 			}
 		}
+		return true;
 	}
 	
 	/**
-	 * Method used to start a new PeerReplier thread
+	 * Queues a message to be sent to a peer
 	 * @param msg - message to be send as a string
-	 * @param ip - IP address of destination peer as a string
-	 * @param port - port number of destination peer as a string
+	 * @param peer - id of destination peer
+	 * @param priority - class the message is scheduled in
+	 */
+	public void toPeer(String msg, int peer, OutboundScheduler.Priority priority) {
+		toPeer(msg.getBytes(), peer, priority);
+	}
+	
+	/**
+	 * Queues an already encoded message to be sent to a peer
+	 * @param msg - message to be sent as bytes
+	 * @param peer - id of destination peer
+	 * @param priority - class the message is scheduled in
+	 */
+	public void toPeer(byte[] msg, int peer, OutboundScheduler.Priority priority) {
+		outbound.send(msg, peer, priority);
+	}
+	
+	/**
+	 * @param priority - class of messages
+	 * @return true if more messages of the class may be queued now
 	 */
-	public void toPeer(String msg, String ip, String port) {
-		Thread t = new Thread(new PeerSender(msg, ip, port), "UDP Sending Thread");
-		t.start();
+	public boolean hasRoom(OutboundScheduler.Priority priority) {
+		return outbound.hasRoom(priority);
+	}
+	
+	/**
+	 * Sends a message that may be larger than a single datagram as a sequence
+	 * of fragments.  Only peers that advertised Reassembler.CAPABILITY can
+	 * reassemble the fragments.
+	 * @param msg - message to be sent as bytes
+	 * @param peer - id of destination peer
+	 * @param priority - class the fragments are scheduled in
+	 */
+	public void toPeerFragmented(byte[] msg, int peer, OutboundScheduler.Priority priority) {
+		if (msg.length <= MAX_DATAGRAM) {
+			toPeer(msg, peer, priority);
+			return;
+		}
+		List<byte[]> fragments = Reassembler.fragment(msg);
+		if (fragments == null) {
+			MyUtil.log("Message of " + msg.length + " bytes is too large to send to " + peers.key(peer), 2);
+			return;
+		}
+		for (byte[] fragment : fragments) {
+			outbound.send(fragment, peer, priority);
+		}
 	}
 	
 	/**
 	 * Closes the DatagramSocket and sets the connection flag to closed.
 	 */
 	public void close() {
-		socket.close();
+		// queued acks, such as the ack of a stop request, go out before the sockets close
+		outbound.close();
 		connectionOpen = false;
+		for (DatagramChannel c : channels) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				MyUtil.log("Error when closing UDP socket.", 2);
+			}
+		}
+		if (groupChannel != null) {
+			try {
+				groupChannel.close(); // also leaves the group
+			} catch (IOException e) {
+				MyUtil.log("Error when closing multicast socket.", 2);
+			}
+		}
 	}
 }